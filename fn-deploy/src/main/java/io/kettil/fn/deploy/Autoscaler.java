@@ -0,0 +1,107 @@
+package io.kettil.fn.deploy;
+
+import com.github.bsideup.liiklus.protocol.GetEndOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.GetOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.LiiklusServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls a consumer group's lag and picks a replica count that keeps the lag per replica under
+ * {@code lagPerReplica}, between {@code min} and {@code max} and never more than there are
+ * partitions. Replicas are added as soon as they are needed but only removed once nothing has
+ * changed for {@code cooldown}, so a short dip does not make the group rebalance back and forth.
+ */
+@Slf4j
+public class Autoscaler implements AutoCloseable {
+    /** A {@code max} of as many replicas as the topic has partitions, since any more would get none. */
+    public static final int PARTITIONS = Integer.MAX_VALUE;
+
+    private final ManagedChannel channel;
+    private final LiiklusServiceGrpc.LiiklusServiceBlockingStub stub;
+    private final GetOffsetsRequest offsetsRequest;
+    private final GetEndOffsetsRequest endOffsetsRequest;
+
+    @Getter
+    private final int min;
+
+    @Getter
+    private final int max;
+
+    private final long lagPerReplica;
+    private final long cooldownMillis;
+    private long lastChange = System.currentTimeMillis();
+
+    @Getter
+    private volatile Map<Integer, Long> lags = Collections.emptyMap();
+
+    public Autoscaler(String host, int port, String topic, String group, int min, int max, long lagPerReplica, long cooldownMillis) {
+        this.channel = ManagedChannelBuilder.forAddress(host, port)
+                .usePlaintext()
+                .build();
+        this.stub = LiiklusServiceGrpc.newBlockingStub(channel);
+
+        this.offsetsRequest = GetOffsetsRequest.newBuilder()
+                .setTopic(topic)
+                .setGroup(group)
+                .build();
+        this.endOffsetsRequest = GetEndOffsetsRequest.newBuilder()
+                .setTopic(topic)
+                .build();
+
+        this.min = min;
+        this.max = max;
+        this.lagPerReplica = lagPerReplica;
+        this.cooldownMillis = cooldownMillis;
+    }
+
+    /** Refreshes the per-partition lag; keeps the previous values if Liiklus cannot be reached. */
+    public void poll() {
+        try {
+            Map<Integer, Long> committed = stub.withDeadlineAfter(5, TimeUnit.SECONDS).getOffsets(offsetsRequest).getOffsetsMap();
+            Map<Integer, Long> ends = stub.withDeadlineAfter(5, TimeUnit.SECONDS).getEndOffsets(endOffsetsRequest).getOffsetsMap();
+
+            Map<Integer, Long> lags = new TreeMap<>();
+            ends.forEach((partition, end) -> {
+                // A partition the group has never committed in lags by everything before its end
+                Long offset = committed.get(partition);
+                lags.put(partition, Math.max(0, offset == null ? end : end - offset - 1));
+            });
+            this.lags = lags;
+        } catch (StatusRuntimeException e) {
+            log.warn("Failed to poll offsets of topic {}: {}", offsetsRequest.getTopic(), e.getStatus());
+        }
+    }
+
+    public long getTotalLag() {
+        return lags.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /** The replica count to move to from {@code current}, given the last polled lag. */
+    public int desired(int current) {
+        int upper = lags.isEmpty() ? max : Math.min(max, lags.size());
+        long wanted = (getTotalLag() + lagPerReplica - 1) / lagPerReplica;
+        int target = (int) Math.max(min, Math.min(upper, wanted));
+
+        long now = System.currentTimeMillis();
+        if (target < current && now - lastChange < cooldownMillis)
+            return current;
+        if (target != current)
+            lastChange = now;
+
+        return target;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        channel.shutdown().awaitTermination(1, TimeUnit.SECONDS);
+    }
+}
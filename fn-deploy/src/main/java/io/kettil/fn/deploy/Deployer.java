@@ -2,10 +2,12 @@ package io.kettil.fn.deploy;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.github.dockerjava.api.exception.NotFoundException;
 import io.kettil.fn.deploy.model.ManifestProps;
 import io.kettil.fn.deploy.model.ManifestRuntimes;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.testcontainers.DockerClientFactory;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.images.builder.ImageFromDockerfile;
@@ -13,15 +15,26 @@ import org.testcontainers.images.builder.dockerfile.DockerfileBuilder;
 import picocli.CommandLine;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 @Slf4j
 @Data
@@ -38,6 +51,18 @@ public class Deployer implements Callable<Integer> {
     @CommandLine.Option(names = {"--port"}, description = "liiklus port", defaultValue = "6565")
     private int liiklusPort;
 
+    @CommandLine.Option(names = {"--endpoints"}, description = "comma separated liiklus host:port endpoints; overrides host and port")
+    private String liiklusEndpoints;
+
+    @CommandLine.Option(names = {"--drain-timeout"}, description = "seconds the invoker may spend finishing in-flight records on shutdown", defaultValue = "10")
+    private int drainTimeout;
+
+    @CommandLine.Option(names = {"--replicas"}, description = "invoker containers to start; overrides scale.replicas in the manifest")
+    private Integer replicas;
+
+    @CommandLine.Option(names = {"--max-restarts"}, description = "replica exits tolerated, each followed by a doubling restart delay, before giving up", defaultValue = "5")
+    private int maxRestarts;
+
     @CommandLine.Parameters(paramLabel = "DIR", description = "function repo dir")
     String dir;
 
@@ -46,8 +71,20 @@ public class Deployer implements Callable<Integer> {
         System.exit(exitCode);
     }
 
+    // Part of every image hash; bump it when the image layout changes
+    private static final String IMAGE_FORMAT = "2";
+
+    private static final String WORK_DIR = "/app";
+
+    private static final long MAX_RESTART_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    // Replicas that have stayed up this long since the last exit reset the restart count
+    private static final long STABLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
     private final CountDownLatch latch = new CountDownLatch(1);
 
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
     @Override
     public Integer call() throws Exception {
         Path manifestPath = Paths.get(dir, "manifest.yaml");
@@ -84,63 +121,377 @@ public class Deployer implements Callable<Integer> {
             return 1;
         }
 
+        // Checked before any image is built, so that a bad jvm or scale section fails fast
+        List<String> jvmOptions;
+        try {
+            jvmOptions = jvmOptions(rt, manifest.getJvm());
+            checkScale(manifest.getScale());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+
         System.out.println("Using runtime " + rt + " and class " + manifest.getClassName() + " in artifact: " + location);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             log.info("shutting down");
             latch.countDown();
+
+            try {
+                stopped.await(drainTimeout + 10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Already in shutdown hook--don't call Thread.currentThread().interrupt()
+            }
         }));
 
         Path sourceInvokerJar = invokerJar.toPath();
-        String invokerJar = "fn-invoker.jar";
-
         Path sourceFunctionJar = location.toAbsolutePath().normalize();
         String functionJar = "fn.jar";
 
         Map<String, String> imageEnv = new LinkedHashMap<>();
-        imageEnv.put("FN_NAME", manifest.getClassName());
+        // A pipeline "a|b|c" is fused in one invoker; the function deployer takes its classes as "a;b;c".
+        imageEnv.put("FN_NAME", String.join(";", manifest.getClassName().split("\\s*\\|\\s*")));
         imageEnv.put("FN_LOCATION", functionJar);
 
-        DockerfileBuilder dockerfileBuilder = new DockerfileBuilder();
-        String dockerFile = dockerfileBuilder
-                .from("openjdk:8-jdk-alpine")
-                .copy(invokerJar, invokerJar)
+        boolean fastStart = Boolean.TRUE.equals(manifest.getFastStart());
+        String mainClass = InvokerLayers.mainClass(sourceInvokerJar);
+
+        // Images are tagged by a hash of everything that goes into them, so an unchanged invoker
+        // image is reused as is and a function change only rebuilds the thin layer on top of it.
+        String invokerImage = "fn-invoker:" + InvokerLayers.hash(IMAGE_FORMAT, rt.getImage(), sourceInvokerJar).substring(0, 12);
+        String invokerStatus = imageExists(invokerImage)
+                ? "hit"
+                : "miss, built in " + buildInvokerImage(invokerImage, rt, sourceInvokerJar) + " ms";
+
+        DockerfileBuilder dockerfileBuilder = new DockerfileBuilder()
+                .from(invokerImage)
+                .workDir(WORK_DIR)
                 .copy(functionJar, functionJar)
-                .env(imageEnv)
-                .cmd("java", "-jar", invokerJar)
-                .build();
+                .env(imageEnv);
+
+        List<String> command = new ArrayList<>();
+        command.add("java");
+        command.addAll(jvmOptions);
+
+        if (fastStart && rt.isAppCds()) {
+            // The training run resolves the function and exits, recording the classes it loaded
+            List<String> training = new ArrayList<>(command);
+            training.addAll(Arrays.asList("-XX:ArchiveClassesAtExit=app.jsa",
+                    "-Dspring.profiles.active=fast", "-Dfn.training=true", "-Dserver.port=0", "-Dfn.grpc.port=0",
+                    "-Dfn.in-topic=training", "-Dfn.in-group=training", "-Dfn.out-topic=training",
+                    mainClass));
+            dockerfileBuilder.run(training.toArray(new String[0]));
+
+            command.add("-XX:SharedArchiveFile=app.jsa");
+        } else if (fastStart) {
+            System.out.println("Runtime " + rt + " cannot record a class-data archive; starting without one");
+        }
+
+        if (fastStart)
+            command.add("-Dspring.profiles.active=fast");
+        command.add(mainClass);
+        dockerfileBuilder.cmd(command.toArray(new String[0]));
+
+        String dockerFile = dockerfileBuilder.build();
 
         System.out.println("Using Dockerfile:");
         System.out.println(dockerFile.replaceAll("(?m)^", "\t"));
 
-        ImageFromDockerfile image = new ImageFromDockerfile()
-                .withFileFromString("Dockerfile", dockerFile)
-                .withFileFromPath(invokerJar, sourceInvokerJar)
-                .withFileFromPath(functionJar, sourceFunctionJar);
+        String functionImage = "fn-" + imageName(Paths.get(dir)) + ":"
+                + InvokerLayers.hash(IMAGE_FORMAT, dockerFile, sourceFunctionJar).substring(0, 12);
+        String functionStatus;
+        if (imageExists(functionImage)) {
+            functionStatus = "hit";
+        } else {
+            long start = System.currentTimeMillis();
+            new ImageFromDockerfile(functionImage, false)
+                    .withFileFromString("Dockerfile", dockerFile)
+                    .withFileFromPath(functionJar, sourceFunctionJar)
+                    .get();
+            functionStatus = "miss, built in " + (System.currentTimeMillis() - start) + " ms";
+        }
 
+        System.out.println("Image cache:");
+        System.out.println("\tbase     " + rt.getImage());
+        System.out.println("\tinvoker  " + invokerImage + " (" + invokerStatus + ")");
+        System.out.println("\tfunction " + functionImage + " (" + functionStatus + ", " + Files.size(sourceFunctionJar) + " bytes)");
 
         Map<String, String> containerEnv = new LinkedHashMap<>();
         containerEnv.put("FN_IN_TOPIC", manifest.getStream().getInTopic());
         containerEnv.put("FN_IN_GROUP", manifest.getStream().getInGroup());
         containerEnv.put("FN_OUT_TOPIC", manifest.getStream().getOutTopic());
+        if (manifest.getStream().getIdempotent() != null)
+            containerEnv.put("FN_IDEMPOTENCE_ENABLED", manifest.getStream().getIdempotent().toString());
+        if (manifest.getBatch().getSize() != null)
+            containerEnv.put("FN_BATCH_SIZE", manifest.getBatch().getSize().toString());
+        if (manifest.getBatch().getLinger() != null)
+            containerEnv.put("FN_BATCH_LINGER", manifest.getBatch().getLinger());
+        if (manifest.getCache().getEnabled() != null)
+            containerEnv.put("FN_CACHE_ENABLED", manifest.getCache().getEnabled().toString());
+        if (manifest.getCache().getMaxSize() != null)
+            containerEnv.put("FN_CACHE_MAX_SIZE", manifest.getCache().getMaxSize().toString());
+        if (manifest.getCache().getTtl() != null)
+            containerEnv.put("FN_CACHE_TTL", manifest.getCache().getTtl());
+        if (manifest.getCache().getOutput() != null)
+            containerEnv.put("FN_CACHE_OUTPUT", manifest.getCache().getOutput().toString());
+        if (manifest.getRetry().getMaxAttempts() != null)
+            containerEnv.put("FN_RETRY_MAX_ATTEMPTS", manifest.getRetry().getMaxAttempts().toString());
+        if (manifest.getRetry().getBackoff() != null)
+            containerEnv.put("FN_RETRY_BACKOFF", manifest.getRetry().getBackoff());
+        if (manifest.getRetry().getMaxBackoff() != null)
+            containerEnv.put("FN_RETRY_MAX_BACKOFF", manifest.getRetry().getMaxBackoff());
+        if (manifest.getRetry().getJitter() != null)
+            containerEnv.put("FN_RETRY_JITTER", manifest.getRetry().getJitter().toString());
+        if (manifest.getRetry().getDeadLetterTopic() != null)
+            containerEnv.put("FN_RETRY_DEAD_LETTER_TOPIC", manifest.getRetry().getDeadLetterTopic());
+        if (!manifest.getStream().getOutputs().isEmpty()) {
+            // Output names are map keys, which environment variables cannot carry verbatim
+            containerEnv.put("SPRING_APPLICATION_JSON", new ObjectMapper().writeValueAsString(
+                    Collections.singletonMap("fn", Collections.singletonMap("outputs", manifest.getStream().getOutputs()))));
+        }
+        if (Boolean.TRUE.equals(manifest.getJvm().getVirtualThreads()))
+            containerEnv.put("FN_EXECUTION_MODE", "virtual");
+        containerEnv.put("FN_DRAIN_TIMEOUT", drainTimeout + "s");
         containerEnv.put("LIIKLUS_HOST", liiklusHost);
         containerEnv.put("LIIKLUS_PORT", Integer.toString(liiklusPort));
+        if (liiklusEndpoints != null)
+            containerEnv.put("LIIKLUS_ENDPOINTS", liiklusEndpoints);
+
+        ManifestProps.ScaleProps scale = manifest.getScale();
+        int initial = replicas != null ? replicas : scale.getReplicas() != null ? scale.getReplicas() : 1;
+        boolean autoscale = Boolean.TRUE.equals(scale.getAutoscale());
+        int interval = scale.getInterval() != null ? scale.getInterval() : 10;
+
+        String[] target = (liiklusEndpoints != null ? liiklusEndpoints.split(",")[0] : liiklusHost + ":" + liiklusPort).trim().split(":");
+
+        List<GenericContainer<?>> containers = new ArrayList<>();
+        int ordinal = 0;
+        int exitCode = 0;
+
+        try (Autoscaler autoscaler = new Autoscaler(
+                target[0],
+                Integer.parseInt(target[1]),
+                manifest.getStream().getInTopic(),
+                manifest.getStream().getInGroup(),
+                scale.getMin() != null ? scale.getMin() : 1,
+                scale.getMax() != null ? scale.getMax() : Autoscaler.PARTITIONS,
+                scale.getLagPerReplica() != null ? scale.getLagPerReplica() : 1000L,
+                TimeUnit.SECONDS.toMillis(scale.getCooldown() != null ? scale.getCooldown() : 60))) {
+
+            int desired = autoscale ? Math.max(autoscaler.getMin(), Math.min(autoscaler.getMax(), initial)) : initial;
+            log.info("Starting {} replica(s){}", desired, autoscale
+                    ? ", autoscaling between " + autoscaler.getMin() + " and " + (autoscaler.getMax() == Autoscaler.PARTITIONS ? "one per partition" : autoscaler.getMax())
+                    : "");
+
+            long tick = 0;
+            int restarts = 0;
+            long lastExit = 0;
+            long restartAt = 0;
+            do {
+                // Replicas that died are replaced after a delay that doubles with every exit. More than
+                // --max-restarts exits with no quiet period between them points at the function, so the
+                // deployer gives up instead of restarting it forever.
+                long now = System.currentTimeMillis();
+                if (restarts > 0 && now - lastExit > STABLE_MILLIS)
+                    restarts = 0;
+
+                for (Iterator<GenericContainer<?>> it = containers.iterator(); it.hasNext(); ) {
+                    GenericContainer<?> container = it.next();
+                    if (!container.isRunning()) {
+                        container.close();
+                        it.remove();
+
+                        restarts++;
+                        lastExit = now;
+                        long delay = Math.min(MAX_RESTART_DELAY_MILLIS, TimeUnit.SECONDS.toMillis(1) << Math.min(restarts - 1, 16));
+                        restartAt = now + delay;
+                        if (restarts <= maxRestarts)
+                            log.warn("Replica {} exited, restart {} of {} in {} ms", container.getContainerName(), restarts, maxRestarts, delay);
+                    }
+                }
+                if (restarts > maxRestarts) {
+                    log.error("{} replica exits within {} s of each other, giving up", restarts, TimeUnit.MILLISECONDS.toSeconds(STABLE_MILLIS));
+                    exitCode = 1;
+                    break;
+                }
+
+                if (tick % interval == 0) {
+                    autoscaler.poll();
+                    if (autoscale) {
+                        int next = autoscaler.desired(desired);
+                        if (next != desired)
+                            log.info("Lag {} across {} partition(s), scaling from {} to {} replica(s)", autoscaler.getTotalLag(), autoscaler.getLags().size(), desired, next);
+                        desired = next;
+                    }
+
+                    System.out.println("Replicas " + containers.size() + "/" + desired + " running, lag " + autoscaler.getTotalLag() + " " + autoscaler.getLags());
+                }
+
+                while (containers.size() < desired && System.currentTimeMillis() >= restartAt) {
+                    GenericContainer<?> container = new GenericContainer<>(functionImage);
+                    container.withEnv(containerEnv);
+                    container.start();
+                    container.followOutput(new Slf4jLogConsumer(log).withPrefix("replica-" + ordinal++));
+                    containers.add(container);
+                }
+                while (containers.size() > desired)
+                    stop(containers.remove(containers.size() - 1));
+
+                tick++;
+            } while (!latch.await(1000, TimeUnit.MILLISECONDS));
+        } finally {
+            stopAll(containers);
+            stopped.countDown();
+        }
+
+        return exitCode;
+    }
 
-        try (GenericContainer container = new GenericContainer(image)) {
-            log.info("Starting container");
+    /**
+     * Turns the manifest's jvm section into java flags, rejecting what the runtime's JVM does not
+     * support. Heap sizing defaults to the JVM's own container-aware ergonomics.
+     */
+    private static List<String> jvmOptions(ManifestRuntimes rt, ManifestProps.JvmProps jvm) {
+        List<String> options = new ArrayList<>();
+
+        if (jvm.getHeap() != null)
+            options.add("-Xmx" + jvm.getHeap());
+        else if (jvm.getMaxRamPercentage() != null)
+            options.add("-XX:MaxRAMPercentage=" + jvm.getMaxRamPercentage());
+
+        if (jvm.getGc() != null) {
+            String gc = jvm.getGc().toLowerCase();
+            int since;
+            switch (gc) {
+                case "g1":
+                    options.add("-XX:+UseG1GC");
+                    since = 8;
+                    break;
+                case "parallel":
+                    options.add("-XX:+UseParallelGC");
+                    since = 8;
+                    break;
+                case "serial":
+                    options.add("-XX:+UseSerialGC");
+                    since = 8;
+                    break;
+                case "z":
+                case "zgc":
+                    options.add("-XX:+UseZGC");
+                    since = 15;
+                    break;
+                case "shenandoah":
+                    options.add("-XX:+UseShenandoahGC");
+                    since = 15;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported gc: " + jvm.getGc());
+            }
 
-            container.withEnv(containerEnv);
-            container.start();
+            if (rt.getVersion() < since)
+                throw new IllegalArgumentException("The " + gc + " gc needs Java " + since + " or later, runtime is " + rt);
+        }
 
-            Slf4jLogConsumer logConsumer = new Slf4jLogConsumer(log);
-            container.followOutput(logConsumer);
+        if (Boolean.TRUE.equals(jvm.getVirtualThreads()) && !rt.isVirtualThreads())
+            throw new IllegalArgumentException("Virtual threads need the Java21 runtime, runtime is " + rt);
 
-            while (!latch.await(1000, TimeUnit.MILLISECONDS)) {
-                if (container.getContainerInfo().getState().getDead())
-                    break;
+        options.addAll(jvm.getOptions());
+
+        return options;
+    }
+
+    private static void checkScale(ManifestProps.ScaleProps scale) {
+        int min = scale.getMin() != null ? scale.getMin() : 1;
+        if (min < 1)
+            throw new IllegalArgumentException("scale.min must be at least 1, is " + min);
+        if (scale.getMax() != null && scale.getMax() < min)
+            throw new IllegalArgumentException("scale.max " + scale.getMax() + " is below scale.min " + min);
+    }
+
+    // A thread per replica, so that shutting down takes one drain timeout however many replicas there are
+    private void stopAll(List<GenericContainer<?>> containers) {
+        if (containers.isEmpty())
+            return;
+
+        ExecutorService executor = Executors.newFixedThreadPool(containers.size());
+        try {
+            List<Future<?>> stops = new ArrayList<>();
+            for (GenericContainer<?> container : containers)
+                stops.add(executor.submit(() -> stop(container)));
+
+            for (Future<?> stop : stops) {
+                try {
+                    stop.get();
+                } catch (ExecutionException e) {
+                    log.warn("Failed to stop a replica", e.getCause());
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
         }
+    }
+
+    // Closing a container kills it; send SIGTERM first so the invoker can drain
+    private void stop(GenericContainer<?> container) {
+        try {
+            if (container.isRunning()) {
+                log.info("Stopping replica {}", container.getContainerName());
+                container.getDockerClient()
+                        .stopContainerCmd(container.getContainerId())
+                        .withTimeout(drainTimeout + 5)
+                        .exec();
+            }
+        } finally {
+            container.close();
+        }
+    }
+
+    private static boolean imageExists(String image) {
+        try {
+            DockerClientFactory.instance().client().inspectImageCmd(image).exec();
+            return true;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds the invoker image: the base JRE, then the invoker's dependencies, then its classes, each
+     * in its own layer. Returns the build time in milliseconds.
+     */
+    private static long buildInvokerImage(String image, ManifestRuntimes rt, Path sourceInvokerJar) throws IOException {
+        long start = System.currentTimeMillis();
+
+        Path staging = Files.createTempDirectory("fn-invoker");
+        try {
+            InvokerLayers layers = InvokerLayers.extract(sourceInvokerJar, staging);
+
+            String dockerFile = new DockerfileBuilder()
+                    .from(rt.getImage())
+                    .workDir(WORK_DIR)
+                    .copy(InvokerLayers.LIB_DIR, InvokerLayers.LIB_DIR)
+                    .copy(InvokerLayers.CLASSES_JAR, InvokerLayers.CLASSES_JAR)
+                    .env("CLASSPATH", layers.classPath(WORK_DIR))
+                    .build();
+
+            new ImageFromDockerfile(image, false)
+                    .withFileFromString("Dockerfile", dockerFile)
+                    .withFileFromPath(InvokerLayers.LIB_DIR, staging.resolve(InvokerLayers.LIB_DIR))
+                    .withFileFromPath(InvokerLayers.CLASSES_JAR, staging.resolve(InvokerLayers.CLASSES_JAR))
+                    .get();
+        } finally {
+            try (Stream<Path> paths = Files.walk(staging)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+
+        return System.currentTimeMillis() - start;
+    }
 
-        return 0;
+    private static String imageName(Path dir) {
+        String name = dir.toAbsolutePath().normalize().getFileName().toString().toLowerCase();
+        return name.replaceAll("[^a-z0-9._-]", "-");
     }
 }
@@ -0,0 +1,134 @@
+package io.kettil.fn.deploy;
+
+import lombok.Value;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Splits the invoker's Spring Boot jar into image layers that change at different rates: its
+ * dependencies, {@code lib/*.jar}, and its own classes repacked as {@code classes.jar}. The jars go
+ * on a plain class path, which every runtime understands and a class-data archive requires.
+ */
+@Value
+public class InvokerLayers {
+    public static final String LIB_DIR = "lib";
+    public static final String CLASSES_JAR = "classes.jar";
+
+    private static final String LIB_PREFIX = "BOOT-INF/lib/";
+    private static final String CLASSES_PREFIX = "BOOT-INF/classes/";
+
+    // Fixed entry times keep classes.jar byte-identical across extractions of the same invoker jar
+    private static final long ENTRY_TIME = 315532800000L;
+
+    String mainClass;
+    List<String> libs;
+
+    /**
+     * Extracts {@code invokerJar} into {@code dir}, returning its main class and dependency jars in
+     * class path order.
+     */
+    public static InvokerLayers extract(Path invokerJar, Path dir) throws IOException {
+        Path lib = Files.createDirectories(dir.resolve(LIB_DIR));
+        List<String> libs = new ArrayList<>();
+
+        try (JarFile jar = new JarFile(invokerJar.toFile());
+             JarOutputStream classes = new JarOutputStream(Files.newOutputStream(dir.resolve(CLASSES_JAR)))) {
+            String mainClass = mainClass(jar, invokerJar);
+
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+
+                if (name.startsWith(LIB_PREFIX) && !entry.isDirectory()) {
+                    String file = name.substring(LIB_PREFIX.length());
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        Files.copy(in, lib.resolve(file));
+                    }
+                    libs.add(LIB_DIR + "/" + file);
+                } else if (name.startsWith(CLASSES_PREFIX) && name.length() > CLASSES_PREFIX.length()) {
+                    JarEntry copy = new JarEntry(name.substring(CLASSES_PREFIX.length()));
+                    copy.setTime(ENTRY_TIME);
+                    classes.putNextEntry(copy);
+                    if (!entry.isDirectory()) {
+                        try (InputStream in = jar.getInputStream(entry)) {
+                            copy(in, classes);
+                        }
+                    }
+                    classes.closeEntry();
+                }
+            }
+
+            return new InvokerLayers(mainClass, libs);
+        }
+    }
+
+    /** The application main class of the invoker's Spring Boot jar. */
+    public static String mainClass(Path invokerJar) throws IOException {
+        try (JarFile jar = new JarFile(invokerJar.toFile())) {
+            return mainClass(jar, invokerJar);
+        }
+    }
+
+    private static String mainClass(JarFile jar, Path invokerJar) throws IOException {
+        String mainClass = jar.getManifest() != null ? jar.getManifest().getMainAttributes().getValue("Start-Class") : null;
+        if (mainClass == null)
+            throw new IOException("Not a Spring Boot jar, no Start-Class: " + invokerJar);
+        return mainClass;
+    }
+
+    /** The image class path, relative to {@code workDir}, with the invoker's classes first. */
+    public String classPath(String workDir) {
+        StringBuilder sb = new StringBuilder(workDir).append('/').append(CLASSES_JAR);
+        for (String lib : libs)
+            sb.append(':').append(workDir).append('/').append(lib);
+        return sb.toString();
+    }
+
+    /** Hex SHA-256 over the given strings and the contents of the given files, in order. */
+    public static String hash(Object... parts) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        for (Object part : parts) {
+            if (part instanceof Path) {
+                try (InputStream in = Files.newInputStream((Path) part)) {
+                    for (int n; (n = in.read(buffer)) != -1; )
+                        digest.update(buffer, 0, n);
+                }
+            } else {
+                digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest())
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) != -1; )
+            out.write(buffer, 0, n);
+    }
+}
@@ -6,7 +6,9 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @Data
@@ -20,6 +22,13 @@ public class ManifestProps {
     @JsonProperty("class-name")
     private String className;
 
+    /**
+     * Registers the function classes directly instead of through the function deployer and, on a
+     * runtime that supports it, starts from a class-data archive recorded while building the image.
+     */
+    @JsonProperty("fast-start")
+    private Boolean fastStart;
+
     @Data
     public static class StreamProps {
         @JsonProperty("in-topic")
@@ -30,11 +39,110 @@ public class ManifestProps {
 
         @JsonProperty("out-topic")
         private String outTopic;
+
+        private Boolean idempotent;
+
+        /** Output names a function can route results to, mapped to their topics. */
+        private final Map<String, String> outputs = new LinkedHashMap<>();
     }
 
     @JsonProperty("stream")
     private final StreamProps stream = new StreamProps();
 
+    @Data
+    public static class BatchProps {
+        private Integer size;
+
+        private String linger;
+    }
+
+    @JsonProperty("batch")
+    private final BatchProps batch = new BatchProps();
+
+    @Data
+    public static class CacheProps {
+        private Boolean enabled;
+
+        @JsonProperty("max-size")
+        private Long maxSize;
+
+        private String ttl;
+
+        private Boolean output;
+    }
+
+    @JsonProperty("cache")
+    private final CacheProps cache = new CacheProps();
+
+    @Data
+    public static class RetryProps {
+        @JsonProperty("max-attempts")
+        private Integer maxAttempts;
+
+        private String backoff;
+
+        @JsonProperty("max-backoff")
+        private String maxBackoff;
+
+        private Double jitter;
+
+        @JsonProperty("dead-letter-topic")
+        private String deadLetterTopic;
+    }
+
+    @JsonProperty("retry")
+    private final RetryProps retry = new RetryProps();
+
+    @Data
+    public static class JvmProps {
+        /** Maximum heap, e.g. 512m; takes precedence over max-ram-percentage. */
+        private String heap;
+
+        /** Maximum heap as a percentage of the container's memory limit. */
+        @JsonProperty("max-ram-percentage")
+        private Double maxRamPercentage;
+
+        /** One of g1, parallel, serial, z or shenandoah. */
+        private String gc;
+
+        /** Runs function calls on virtual threads, for functions that block; needs java21. */
+        @JsonProperty("virtual-threads")
+        private Boolean virtualThreads;
+
+        /** Extra flags passed to java as is. */
+        private final List<String> options = new ArrayList<>();
+    }
+
+    @JsonProperty("jvm")
+    private final JvmProps jvm = new JvmProps();
+
+    @Data
+    public static class ScaleProps {
+        /** Invoker containers to start, all in the stream's consumer group. */
+        private Integer replicas;
+
+        /** Fewest replicas when autoscaling, 1 by default. */
+        private Integer min;
+
+        /** Most replicas when autoscaling, by default one per partition of the input topic. */
+        private Integer max;
+
+        /** Adds and removes replicas, between min and max, to keep the group's lag per replica down. */
+        private Boolean autoscale;
+
+        @JsonProperty("lag-per-replica")
+        private Long lagPerReplica;
+
+        /** Seconds between lag polls and status reports. */
+        private Integer interval;
+
+        /** Seconds to wait after a scaling action before removing a replica. */
+        private Integer cooldown;
+    }
+
+    @JsonProperty("scale")
+    private final ScaleProps scale = new ScaleProps();
+
     @JsonAnyGetter
     public Map<String, Object> getAny() {
         return any;
@@ -1,5 +1,25 @@
 package io.kettil.fn.deploy.model;
 
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@Getter
+@RequiredArgsConstructor
 public enum ManifestRuntimes {
-    Java8
+    Java8("openjdk:8-jdk-alpine", 8),
+    Java17("eclipse-temurin:17-jdk-alpine", 17),
+    Java21("eclipse-temurin:21-jdk-alpine", 21);
+
+    private final String image;
+
+    private final int version;
+
+    /** Whether the JVM can record a dynamic class-data archive, -XX:ArchiveClassesAtExit (JDK 13+). */
+    public boolean isAppCds() {
+        return version >= 13;
+    }
+
+    public boolean isVirtualThreads() {
+        return version >= 21;
+    }
 }
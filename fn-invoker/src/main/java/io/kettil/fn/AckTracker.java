@@ -0,0 +1,106 @@
+package io.kettil.fn;
+
+import com.github.bsideup.liiklus.protocol.AckRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import io.micrometer.core.instrument.Counter;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.TreeSet;
+
+/**
+ * Tracks completed offsets of one partition and commits the highest offset below which every
+ * received record has completed. Commits are coalesced: one Ack is sent after {@code maxCount}
+ * completions or every {@code interval}, and at most one Ack is in flight at a time.
+ */
+@Slf4j
+public class AckTracker {
+    private final ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub;
+    private final AckRequest template;
+    private final int maxCount;
+    private final Counter errors;
+
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    private final TreeSet<Long> completed = new TreeSet<>();
+    private long watermark = -1;
+    private long requested = -1;
+    private int uncommitted;
+    private boolean closed;
+
+    private final Sinks.Many<Long> commits = Sinks.many().unicast().onBackpressureBuffer();
+    private final Sinks.Empty<Void> terminated = Sinks.empty();
+    private final Disposable ticker;
+
+    public AckTracker(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, AckRequest template, int maxCount, Duration interval, Counter errors) {
+        this.stub = stub;
+        this.template = template;
+        this.maxCount = maxCount;
+        this.errors = errors;
+
+        commits.asFlux()
+                .onBackpressureLatest()
+                .concatMap(this::commit, 1)
+                .subscribe(null, e -> terminated.tryEmitEmpty(), terminated::tryEmitEmpty);
+
+        ticker = Flux.interval(interval)
+                .subscribe(i -> flush());
+    }
+
+    public int getPartition() {
+        return template.getPartition();
+    }
+
+    public synchronized void received(long offset) {
+        inFlight.add(offset);
+    }
+
+    public synchronized void completed(long offset) {
+        if (!inFlight.remove(offset))
+            return;
+
+        completed.add(offset);
+        while (!completed.isEmpty() && (inFlight.isEmpty() || completed.first() < inFlight.first()))
+            watermark = completed.pollFirst();
+
+        if (++uncommitted >= maxCount)
+            flush();
+    }
+
+    public synchronized void flush() {
+        if (closed || watermark <= requested)
+            return;
+
+        requested = watermark;
+        uncommitted = 0;
+        commits.tryEmitNext(watermark);
+    }
+
+    public Mono<Void> close() {
+        synchronized (this) {
+            if (!closed) {
+                flush();
+                closed = true;
+                ticker.dispose();
+                commits.tryEmitComplete();
+            }
+        }
+
+        return terminated.asMono();
+    }
+
+    private Mono<Void> commit(long offset) {
+        log.debug("ACKing partition {} offset {}", template.getPartition(), offset);
+
+        return stub.ack(template.toBuilder().setOffset(offset).build())
+                .then()
+                .onErrorResume(e -> {
+                    errors.increment();
+                    log.warn("Ack of partition {} offset {} failed", template.getPartition(), offset, e);
+                    return Mono.empty();
+                });
+    }
+}
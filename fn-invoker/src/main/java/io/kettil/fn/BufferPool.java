@@ -0,0 +1,71 @@
+package io.kettil.fn;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of growable byte buffers used to serialize outgoing payloads. A buffer's
+ * contents are handed to protobuf with {@link Buffer#wrap}, which does not copy; the owner must not
+ * {@link Buffer#release} it until the message that wraps it has been sent.
+ */
+public class BufferPool {
+    private final ArrayBlockingQueue<Buffer> buffers;
+    private final int initialCapacity;
+    private final int maxRetained;
+
+    public BufferPool(int size, int initialCapacity, int maxRetained) {
+        this.buffers = new ArrayBlockingQueue<>(size);
+        this.initialCapacity = initialCapacity;
+        this.maxRetained = maxRetained;
+    }
+
+    public Buffer acquire() {
+        Buffer buffer = buffers.poll();
+        return buffer != null ? buffer : new Buffer(initialCapacity);
+    }
+
+    public class Buffer extends OutputStream {
+        private byte[] bytes;
+        private int count;
+
+        private Buffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            bytes[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public ByteString wrap() {
+            return UnsafeByteOperations.unsafeWrap(bytes, 0, count);
+        }
+
+        public void release() {
+            count = 0;
+            if (bytes.length <= maxRetained)
+                buffers.offer(this);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length << 1));
+        }
+    }
+}
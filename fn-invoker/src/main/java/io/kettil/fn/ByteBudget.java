@@ -0,0 +1,52 @@
+package io.kettil.fn;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global limit on the payload bytes held by records that have been received but not yet completed.
+ * Gates stop requesting records while the budget is exhausted and are woken when it frees up.
+ */
+@Component
+public class ByteBudget {
+    private final long maxBytes;
+    private final AtomicLong used = new AtomicLong();
+    private final Set<CreditGate> gates = ConcurrentHashMap.newKeySet();
+
+    public ByteBudget(FnProperties fnProperties) {
+        this.maxBytes = fnProperties.getFlow().getMaxBytes().toBytes();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public boolean hasRemaining() {
+        return used.get() < maxBytes;
+    }
+
+    public void acquire(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    public void release(long bytes) {
+        long previous = used.getAndAdd(-bytes);
+        if (previous >= maxBytes && previous - bytes < maxBytes)
+            gates.forEach(CreditGate::replenish);
+    }
+
+    void register(CreditGate gate) {
+        gates.add(gate);
+    }
+
+    void unregister(CreditGate gate) {
+        gates.remove(gate);
+    }
+}
@@ -0,0 +1,135 @@
+package io.kettil.fn;
+
+import com.github.bsideup.liiklus.protocol.ReceiveReply;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests records from one partition's receive stream only while fewer than {@code credits}
+ * records are outstanding and the shared {@link ByteBudget} has room. A record's credit and bytes
+ * are returned by {@link #release} once it has completed. {@link #drain} stops the receive stream
+ * and completes the gated stream once every record already let through has been released.
+ */
+public class CreditGate extends BaseSubscriber<ReceiveReply.LiiklusEventRecord> {
+    private final int partition;
+    private final ByteBudget budget;
+    private final Sinks.Many<ReceiveReply.LiiklusEventRecord> sink = Sinks.many().unicast().onBackpressureBuffer();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong held = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile int credits;
+    private volatile boolean draining;
+
+    public CreditGate(int partition, int credits, ByteBudget budget) {
+        this.partition = partition;
+        this.credits = credits;
+        this.budget = budget;
+    }
+
+    public Flux<ReceiveReply.LiiklusEventRecord> gate(Flux<ReceiveReply.LiiklusEventRecord> records) {
+        return sink.asFlux()
+                .doOnSubscribe(s -> records.subscribe(this))
+                .doOnCancel(this::dispose);
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public int getCredits() {
+        return credits;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public void setCredits(int credits) {
+        this.credits = credits;
+        replenish();
+    }
+
+    public void release(ReceiveReply.LiiklusEventRecord record) {
+        held.addAndGet(-size(record));
+        budget.release(size(record));
+        outstanding.decrementAndGet();
+
+        if (pending.decrementAndGet() == 0 && draining)
+            sink.tryEmitComplete();
+        else
+            replenish();
+    }
+
+    private static int size(ReceiveReply.LiiklusEventRecord record) {
+        return record.getEvent().getData().size();
+    }
+
+    public void drain() {
+        draining = true;
+        cancel();
+
+        if (pending.get() == 0)
+            sink.tryEmitComplete();
+    }
+
+    public void close() {
+        dispose();
+        budget.release(held.getAndSet(0));
+    }
+
+    void replenish() {
+        if (isDisposed() || upstream() == null)
+            return;
+
+        while (budget.hasRemaining()) {
+            int n = outstanding.get();
+            int deficit = credits - n;
+            if (deficit <= 0)
+                return;
+
+            if (outstanding.compareAndSet(n, n + deficit)) {
+                request(deficit);
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected void hookOnSubscribe(Subscription subscription) {
+        budget.register(this);
+        replenish();
+    }
+
+    @Override
+    protected void hookOnNext(ReceiveReply.LiiklusEventRecord record) {
+        // Not acknowledged, so it is received again by whoever gets the partition next
+        if (draining)
+            return;
+
+        pending.incrementAndGet();
+        held.addAndGet(size(record));
+        budget.acquire(size(record));
+        sink.tryEmitNext(record);
+    }
+
+    @Override
+    protected void hookOnComplete() {
+        sink.tryEmitComplete();
+    }
+
+    @Override
+    protected void hookOnError(Throwable throwable) {
+        sink.tryEmitError(throwable);
+    }
+
+    @Override
+    protected void hookFinally(SignalType type) {
+        budget.unregister(this);
+    }
+}
@@ -0,0 +1,53 @@
+package io.kettil.fn;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which of the most recent offsets of a partition have already been handled, one bit per
+ * offset in a ring of {@code size} bits. Offsets older than the window are reported as unseen so
+ * that they are processed again rather than dropped.
+ */
+public class DedupeWindow {
+    private final long[] words;
+    private final int size;
+    private long high = -1;
+
+    public DedupeWindow(int size) {
+        this.words = new long[(size + 63) >>> 6];
+        this.size = words.length << 6;
+    }
+
+    public synchronized boolean contains(long offset) {
+        if (offset > high || offset <= high - size || offset < 0)
+            return false;
+
+        int bit = index(offset);
+        return (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    public synchronized void add(long offset) {
+        if (offset < 0 || offset <= high - size)
+            return;
+
+        if (offset > high) {
+            if (offset - high >= size) {
+                Arrays.fill(words, 0L);
+            } else {
+                for (long o = high + 1; o < offset; o++)
+                    clear(index(o));
+            }
+            high = offset;
+        }
+
+        int bit = index(offset);
+        words[bit >>> 6] |= 1L << bit;
+    }
+
+    private int index(long offset) {
+        return (int) (offset % size);
+    }
+
+    private void clear(int bit) {
+        words[bit >>> 6] &= ~(1L << bit);
+    }
+}
@@ -0,0 +1,76 @@
+package io.kettil.fn;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.function.context.FunctionRegistration;
+import org.springframework.cloud.function.context.FunctionProperties;
+import org.springframework.cloud.function.context.FunctionRegistry;
+import org.springframework.cloud.function.context.catalog.FunctionTypeUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fast-start replacement for the function deployer: instead of booting a child application context
+ * for the function archive, loads the {@code class-name} classes straight from {@code fn.location}
+ * and registers them under the names the deployer would use. The archive must be a plain jar whose
+ * classes only depend on what the invoker already provides.
+ */
+@Component
+@ConditionalOnProperty("fn.fast-start")
+@Slf4j
+public class DirectFunctionLoader implements SmartInitializingSingleton {
+    private final FnProperties fnProperties;
+    private final FunctionRegistry functionRegistry;
+    private final FunctionProperties functionProperties;
+    private final String functionClass;
+
+    public DirectFunctionLoader(
+            FnProperties fnProperties,
+            FunctionRegistry functionRegistry,
+            FunctionProperties functionProperties,
+            @Value("${spring.cloud.function.function-class}") String functionClass) {
+        this.fnProperties = fnProperties;
+        this.functionRegistry = functionRegistry;
+        this.functionProperties = functionProperties;
+        this.functionClass = functionClass;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        try {
+            URL location = new File(fnProperties.getLocation()).toURI().toURL();
+            ClassLoader loader = new URLClassLoader(new URL[]{location}, getClass().getClassLoader());
+            if (loader.getResource("BOOT-INF/classes/") != null)
+                throw new IllegalStateException("Fast start needs a plain function jar, not a Spring Boot archive: " + fnProperties.getLocation());
+
+            List<String> names = new ArrayList<>();
+            for (String className : StringUtils.tokenizeToStringArray(functionClass, ";")) {
+                Class<?> type = loader.loadClass(className);
+                Object function = type.getDeclaredConstructor().newInstance();
+                String name = StringUtils.uncapitalize(type.getSimpleName());
+
+                functionRegistry.register(new FunctionRegistration<>(function, name)
+                        .type(FunctionTypeUtils.discoverFunctionTypeFromClass(type)));
+
+                names.add(name);
+
+                log.info("Registered function class {} under name {}", className, name);
+            }
+
+            // The deployer would otherwise have set the definition that FnRegistry resolves
+            if (!StringUtils.hasText(functionProperties.getDefinition()))
+                functionProperties.setDefinition(String.join("|", names));
+        } catch (ReflectiveOperationException | IOException e) {
+            throw new IllegalStateException("Failed to load function from " + fnProperties.getLocation(), e);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.kettil.fn;
+
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import lombok.Value;
+
+@Value
+public class EncodedEvent {
+    PublishRequest request;
+    BufferPool.Buffer buffer;
+
+    public void release() {
+        if (buffer != null)
+            buffer.release();
+    }
+}
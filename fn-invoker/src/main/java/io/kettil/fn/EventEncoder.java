@@ -0,0 +1,229 @@
+package io.kettil.fn;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.github.bsideup.liiklus.protocol.ReceiveReply;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes function results into publish requests. A result is routed when it is a
+ * {@link Message}, or a collection of them: each message goes to the outputs named in its
+ * {@value #DESTINATION_HEADER} header (a name from {@code fn.outputs}, or a topic) and to
+ * {@code fn.out-topic} when the header is absent. Each event's payload is written with, and its
+ * {@code data_content_type} set to, the codec {@link PayloadCodecs} picks for the value.
+ */
+@Component
+public class EventEncoder {
+    public static final String DESTINATION_HEADER = "destination";
+
+    public static final String EVENT_TYPE = "io.kettil.fn.event";
+
+    public static final String DEAD_LETTER_TYPE = "io.kettil.fn.dead-letter";
+
+    private static final String SOURCE = "/example";
+
+    private final BufferPool pool;
+    private final String outTopic;
+    private final KeyExtractor keyExtractor;
+    private final PayloadCodecs codecs;
+    private final EventIds ids = new EventIds();
+    private final String inTopic;
+    private final boolean idempotent;
+    private final Map<String, String> outputs;
+
+    public EventEncoder(FnProperties fnProperties, ObjectProvider<KeyExtractor> keyExtractor, PayloadCodecs codecs) {
+        this.pool = new BufferPool(
+                fnProperties.getBufferPool().getSize(),
+                fnProperties.getBufferPool().getInitialCapacity(),
+                fnProperties.getBufferPool().getMaxRetained());
+
+        this.outTopic = fnProperties.getOutTopic();
+        this.keyExtractor = keyExtractor.getIfAvailable(() -> KeyExtractor.of(fnProperties.getKey()));
+        this.codecs = codecs;
+        this.inTopic = fnProperties.getInTopic();
+        this.idempotent = fnProperties.getIdempotence().isEnabled();
+        this.outputs = fnProperties.getOutputs();
+    }
+
+    public static boolean isRouted(Object result) {
+        if (result instanceof Message)
+            return true;
+        if (!(result instanceof Collection) || ((Collection<?>) result).isEmpty())
+            return false;
+
+        for (Object item : (Collection<?>) result) {
+            if (!(item instanceof Message))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the id for the {@code index}th output computed from the record at {@code offset}, or
+     * {@code null} to have one generated. Ids are only derived from the input position in
+     * idempotent mode, where a record processed again after a restart must yield the same ids.
+     */
+    public String idFor(int partition, long offset, int index) {
+        return idempotent ? EventIds.derived(inTopic, partition, offset, index) : null;
+    }
+
+    /**
+     * @param inputKey key of the record {@code value} was computed from, or {@code null} if unknown
+     * @param id       event id, or {@code null} to generate one
+     */
+    public EncodedEvent encode(Object value, ByteString inputKey, String id) throws IOException {
+        PayloadCodec codec = codecs.forValue(value);
+
+        BufferPool.Buffer buffer = pool.acquire();
+        try {
+            codec.write(value, buffer);
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+
+        return new EncodedEvent(request(outTopic, value, buffer.wrap(), codec.getContentType(), inputKey, id), buffer);
+    }
+
+    /**
+     * Encodes a result that may be routed to several outputs. Events routed from one message share
+     * a single buffer owned by the first of them, so the list must be released as a whole once all
+     * of its events have been sent. In idempotent mode the extra events get {@code id.1},
+     * {@code id.2} and so on.
+     */
+    public List<EncodedEvent> encodeAll(Object result, ByteString inputKey, String id) throws IOException {
+        if (!isRouted(result))
+            return Collections.singletonList(encode(result, inputKey, id));
+
+        Collection<?> messages = result instanceof Message ? Collections.singletonList(result) : (Collection<?>) result;
+
+        List<EncodedEvent> events = new ArrayList<>(messages.size());
+        try {
+            for (Object message : messages)
+                route((Message<?>) message, inputKey, id, events);
+        } catch (IOException | RuntimeException e) {
+            events.forEach(EncodedEvent::release);
+            throw e;
+        }
+
+        return events;
+    }
+
+    /**
+     * Builds an event around {@code data} that has already been encoded from {@code value} as
+     * {@code contentType}; no pooled buffer is involved, so releasing the result is a no-op.
+     */
+    public EncodedEvent encode(Object value, ByteString data, String contentType, ByteString inputKey, String id) {
+        return new EncodedEvent(request(outTopic, value, data, contentType, inputKey, id), null);
+    }
+
+    private void route(Message<?> message, ByteString inputKey, String id, List<EncodedEvent> events) throws IOException {
+        Object payload = message.getPayload();
+
+        BufferPool.Buffer buffer = null;
+        ByteString data;
+        String contentType;
+        if (payload instanceof byte[]) {
+            // Already encoded, as the message's content type header says, or the default
+            Object header = message.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+            data = UnsafeByteOperations.unsafeWrap((byte[]) payload);
+            contentType = header != null ? header.toString() : codecs.getDefault().getContentType();
+        } else {
+            PayloadCodec codec = codecs.forValue(payload);
+            buffer = pool.acquire();
+            try {
+                codec.write(payload, buffer);
+            } catch (IOException | RuntimeException e) {
+                buffer.release();
+                throw e;
+            }
+            data = buffer.wrap();
+            contentType = codec.getContentType();
+        }
+
+        for (String topic : destinations(message)) {
+            String eventId = id == null || events.isEmpty() ? id : id + "." + events.size();
+            events.add(new EncodedEvent(request(topic, payload, data, contentType, inputKey, eventId), buffer));
+            buffer = null;
+        }
+
+        if (buffer != null)
+            buffer.release();
+    }
+
+    private List<String> destinations(Message<?> message) {
+        Object header = message.getHeaders().get(DESTINATION_HEADER);
+        if (header == null)
+            return Collections.singletonList(outTopic);
+
+        Collection<?> names = header instanceof Collection
+                ? (Collection<?>) header
+                : Arrays.asList(StringUtils.commaDelimitedListToStringArray(header.toString()));
+
+        List<String> topics = new ArrayList<>(names.size());
+        for (Object name : names) {
+            String trimmed = name.toString().trim();
+            topics.add(outputs.getOrDefault(trimmed, trimmed));
+        }
+        return topics;
+    }
+
+    /**
+     * Wraps a record that could not be processed, unchanged, for the dead-letter topic. The error and
+     * where the record came from are carried as event extensions.
+     */
+    public PublishRequest deadLetter(String topic, int partition, ReceiveReply.LiiklusEventRecord record, Throwable error) {
+        String id = idFor(partition, record.getOffset(), 0);
+        if (id == null)
+            id = ids.next();
+
+        return PublishRequest.newBuilder()
+                .setTopic(topic)
+                .setKey(record.getKey().isEmpty() ? ByteString.copyFromUtf8(id) : record.getKey())
+                .setLiiklusEvent(LiiklusEvent.newBuilder()
+                        .setId(id)
+                        .setType(DEAD_LETTER_TYPE)
+                        .setSource(SOURCE)
+                        .setDataContentType(record.getEvent().getDataContentType())
+                        .setData(record.getEvent().getData())
+                        .putExtensions("errortype", error.getClass().getName())
+                        .putExtensions("errormessage", String.valueOf(error.getMessage()))
+                        .putExtensions("sourcetopic", inTopic)
+                        .putExtensions("sourcepartition", Integer.toString(partition))
+                        .putExtensions("sourceoffset", Long.toString(record.getOffset())))
+                .build();
+    }
+
+    // Built from empty builders: toBuilder() on a prebuilt template merges it in field by field,
+    // which allocates more per event than setting the few constant fields again
+    private PublishRequest request(String topic, Object value, ByteString data, String contentType, ByteString inputKey, String id) {
+        if (id == null)
+            id = ids.next();
+        ByteString key = keyExtractor.extract(inputKey, value);
+
+        return PublishRequest.newBuilder()
+                .setTopic(topic)
+                .setKey(key != null ? key : ByteString.copyFromUtf8(id))
+                .setLiiklusEvent(LiiklusEvent.newBuilder()
+                        .setId(id)
+                        .setType(EVENT_TYPE)
+                        .setSource(SOURCE)
+                        .setDataContentType(contentType)
+                        .setData(data))
+                .build();
+    }
+}
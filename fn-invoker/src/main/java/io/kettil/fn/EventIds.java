@@ -0,0 +1,32 @@
+package io.kettil.fn;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates event ids without touching {@code SecureRandom}: a prefix chosen once per process from
+ * the start time and a random node number, followed by a monotonically increasing counter. Ids
+ * that must survive a restart are instead derived from the position of the input record.
+ */
+public class EventIds {
+    private final String prefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    public EventIds() {
+        this.prefix = Long.toString(System.currentTimeMillis(), 36)
+                + "-" + Integer.toString(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE), 36)
+                + "-";
+    }
+
+    public String next() {
+        return prefix + Long.toString(counter.incrementAndGet(), 36);
+    }
+
+    public static String derived(String topic, int partition, long offset, int index) {
+        StringBuilder id = new StringBuilder(topic.length() + 24)
+                .append(topic).append('-').append(partition).append('-').append(offset);
+        if (index > 0)
+            id.append('-').append(index);
+        return id.toString();
+    }
+}
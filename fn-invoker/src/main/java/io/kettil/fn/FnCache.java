@@ -0,0 +1,115 @@
+package io.kettil.fn;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.protobuf.ByteString;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Memoizes the results of a pure function keyed by the serialized input, optionally together with
+ * the serialized output so that a hit skips encoding as well. Shared by the RPC and streaming
+ * controllers; hit, miss and eviction counts are exported as {@code fn.cache} metrics.
+ */
+@Component
+@Slf4j
+public class FnCache {
+    private final FnProperties.CacheProps props;
+    private final FnMetrics metrics;
+    private final PayloadCodecs codecs;
+    private final Cache<ByteString, Result> cache;
+
+    public FnCache(FnProperties fnProperties, FnMetrics metrics, PayloadCodecs codecs, MeterRegistry meterRegistry) {
+        this.props = fnProperties.getCache();
+        this.metrics = metrics;
+        this.codecs = codecs;
+
+        if (props.isEnabled()) {
+            Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                    .maximumSize(props.getMaxSize())
+                    .recordStats();
+            if (props.getTtl() != null)
+                builder.expireAfterWrite(props.getTtl());
+
+            cache = CaffeineCacheMetrics.monitor(meterRegistry, builder.build(), "fn.cache");
+
+            log.info("Caching up to {} function results for {}", props.getMaxSize(), props.getTtl());
+        } else {
+            cache = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Returns the result of applying {@code fn} to the value encoded in {@code bytes} with
+     * {@code codec}, calling the function only if no result for equal bytes of the same content type
+     * is cached. Concurrent misses on the same key wait for the one call in progress instead of each
+     * calling the function; a call that fails caches nothing.
+     */
+    public Result apply(ResolvedFunction fn, ByteString bytes, PayloadCodec codec) throws Exception {
+        // Payloads of the default content type, by far the most common, are keyed by their bytes alone
+        ByteString key = codec == codecs.getDefault()
+                ? bytes
+                : ByteString.copyFromUtf8(codec.getContentType() + "\0").concat(bytes);
+
+        try {
+            return cache.get(key, k -> {
+                try {
+                    return compute(fn, bytes, codec);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new ComputeException(e);
+                }
+            });
+        } catch (ComputeException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private Result compute(ResolvedFunction fn, ByteString bytes, PayloadCodec codec) throws Exception {
+        Object input = fn.read(bytes, codec);
+        Object value = metrics.getApply().recordCallable(() -> fn.apply(input));
+
+        if (props.isOutput() && !EventEncoder.isRouted(value)) {
+            PayloadCodec output = codecs.forValue(value);
+            ByteString.Output out = ByteString.newOutput();
+            output.write(value, out);
+            return new Result(value, out.toByteString(), output.getContentType());
+        }
+
+        return new Result(value, null, null);
+    }
+
+    // Results are keyed by input alone, so none of them hold once the function has changed
+    @EventListener(FnRegistry.FunctionRefreshedEvent.class)
+    public void onFunctionRefreshed() {
+        if (cache != null)
+            cache.invalidateAll();
+    }
+
+    // Carries a checked exception out of the cache's mapping function
+    private static class ComputeException extends RuntimeException {
+        ComputeException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    @Value
+    public static class Result {
+        Object value;
+
+        /** The serialized value, or {@code null} unless output caching is enabled. */
+        ByteString bytes;
+
+        /** The content type {@link #bytes} are encoded with. */
+        String contentType;
+    }
+}
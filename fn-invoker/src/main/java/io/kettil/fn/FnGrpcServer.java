@@ -0,0 +1,63 @@
+package io.kettil.fn;
+
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+
+/** Serves {@link FnGrpcService} on {@code fn.grpc.port}, next to the HTTP endpoints, with {@code fn.grpc.enabled}. */
+@Component
+@ConditionalOnProperty(value = "fn.grpc.enabled")
+@Slf4j
+public class FnGrpcServer implements SmartLifecycle {
+    private final FnProperties.GrpcProps props;
+    private final FnGrpcService service;
+    private volatile Server server;
+
+    public FnGrpcServer(FnProperties fnProperties, FnGrpcService service) {
+        this.props = fnProperties.getGrpc();
+        this.service = service;
+    }
+
+    @Override
+    public void start() {
+        try {
+            server = NettyServerBuilder.forPort(props.getPort())
+                    .maxInboundMessageSize((int) props.getMaxInboundMessageSize().toBytes())
+                    .addService(service)
+                    .build()
+                    .start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to start the gRPC server on port " + props.getPort(), e);
+        }
+
+        log.info("gRPC invocations served on port {}", server.getPort());
+    }
+
+    @Override
+    public void stop() {
+        Server server = this.server;
+        if (server == null)
+            return;
+
+        server.shutdown();
+        try {
+            server.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.shutdownNow();
+        this.server = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return server != null;
+    }
+}
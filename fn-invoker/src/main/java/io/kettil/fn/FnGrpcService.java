@@ -0,0 +1,96 @@
+package io.kettil.fn;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.kettil.fn.protocol.InvokeReply;
+import io.kettil.fn.protocol.InvokeRequest;
+import io.kettil.fn.protocol.ReactorFnInvokerServiceGrpc;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+
+/**
+ * Invokes the function over gRPC with the payload carried as bytes, in any content type
+ * {@link PayloadCodecs} knows. Shares {@link FnInvoker} with the HTTP controller, so calls run on the
+ * same scheduler, use the same codecs, hit the same cache and are timed by the same metrics. A
+ * streamed payload that fails gets a reply with {@code error} set instead of failing the whole
+ * stream.
+ */
+@Component
+@Slf4j
+public class FnGrpcService extends ReactorFnInvokerServiceGrpc.FnInvokerServiceImplBase {
+    private final FnRegistry registry;
+    private final FnInvoker invoker;
+    private final FnProperties fnProperties;
+    private final PayloadCodecs codecs;
+
+    public FnGrpcService(FnRegistry registry, FnInvoker invoker, FnProperties fnProperties, PayloadCodecs codecs) {
+        this.registry = registry;
+        this.invoker = invoker;
+        this.fnProperties = fnProperties;
+        this.codecs = codecs;
+    }
+
+    @Override
+    public Mono<InvokeReply> invoke(Mono<InvokeRequest> request) {
+        return request.flatMap(this::apply)
+                .onErrorMap(e -> !(e instanceof StatusRuntimeException), FnGrpcService::status);
+    }
+
+    @Override
+    public Flux<InvokeReply> invokeStream(Flux<InvokeRequest> requests) {
+        ResolvedFunction fn = registry.getFunction();
+
+        // Outputs of a reactive function cannot be traced back to a request, so they carry no id
+        if (fn.isReactive()) {
+            Flux<Object> inputs = requests
+                    .publishOn(invoker.scheduler())
+                    .handle((request, sink) -> {
+                        try {
+                            sink.next(fn.read(request.getData(), codecs.forContentType(request.getContentType())));
+                        } catch (IOException e) {
+                            sink.error(status(e));
+                        }
+                    });
+
+            return fn.applyFlux(inputs)
+                    .concatMap(result -> Mono.fromCallable(() -> {
+                        PayloadCodec codec = codecs.forValue(result);
+                        ByteString.Output out = ByteString.newOutput();
+                        codec.write(result, out);
+                        return reply("", new FnInvoker.Output(out.toByteString(), codec.getContentType()));
+                    }));
+        }
+
+        return requests.flatMapSequential(request -> apply(request)
+                .onErrorResume(e -> {
+                    log.debug("Invocation {} failed", request.getId(), e);
+                    return Mono.just(InvokeReply.newBuilder()
+                            .setId(request.getId())
+                            .setError(e.getClass().getName() + ": " + e.getMessage())
+                            .build());
+                }), fnProperties.getConcurrency());
+    }
+
+    private Mono<InvokeReply> apply(InvokeRequest request) {
+        return invoker.invokeAsync(request.getData(), request.getContentType())
+                .map(output -> reply(request.getId(), output));
+    }
+
+    private static InvokeReply reply(String id, FnInvoker.Output output) {
+        return InvokeReply.newBuilder()
+                .setId(id)
+                .setData(output.getData())
+                .setContentType(output.getContentType())
+                .build();
+    }
+
+    private static Throwable status(Throwable e) {
+        Status status = e instanceof IOException ? Status.INVALID_ARGUMENT : Status.INTERNAL;
+        return status.withDescription(e.getMessage()).withCause(e).asRuntimeException();
+    }
+}
@@ -0,0 +1,96 @@
+package io.kettil.fn;
+
+import com.google.protobuf.ByteString;
+import lombok.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Applies the function to one encoded input and encodes the result, for the HTTP and gRPC entry
+ * points. The input is read with the codec for its content type and the result written with the one
+ * {@link PayloadCodecs} picks for it. A batch function is called with a batch of just that input and
+ * a reactive one with a Flux of just that input; a single output is returned as is and several as a
+ * list. Results of plain functions come from the cache when it is enabled and calls are timed as
+ * {@code fn.apply} either way.
+ */
+@Component
+public class FnInvoker {
+    private final FnRegistry registry;
+    private final FnCache cache;
+    private final FnSchedulers schedulers;
+    private final FnMetrics metrics;
+    private final PayloadCodecs codecs;
+
+    public FnInvoker(FnRegistry registry, FnCache cache, FnSchedulers schedulers, FnMetrics metrics, PayloadCodecs codecs) {
+        this.registry = registry;
+        this.cache = cache;
+        this.schedulers = schedulers;
+        this.metrics = metrics;
+        this.codecs = codecs;
+    }
+
+    /**
+     * Blocks until a reactive function's outputs are in, so it must not be called on an event loop.
+     *
+     * @param contentType content type of {@code input}, or {@code null} for the default
+     */
+    public Output invoke(ByteString input, String contentType) throws Exception {
+        ResolvedFunction fn = registry.getFunction();
+        PayloadCodec codec = codecs.forContentType(contentType);
+
+        Object value;
+        if (cache.isEnabled() && !fn.isBatch() && !fn.isReactive()) {
+            FnCache.Result result = cache.apply(fn, input, codec);
+            if (result.getBytes() != null)
+                return new Output(result.getBytes(), result.getContentType());
+            value = result.getValue();
+        } else {
+            Object in = fn.read(input, codec);
+            value = metrics.getApply().recordCallable(() -> apply(fn, in));
+        }
+
+        PayloadCodec output = codecs.forValue(value);
+        ByteString.Output out = ByteString.newOutput();
+        output.write(value, out);
+        return new Output(out.toByteString(), output.getContentType());
+    }
+
+    private static Object apply(ResolvedFunction fn, Object input) {
+        if (fn.isBatch())
+            return single(fn.apply(Collections.singletonList(input)));
+        if (fn.isReactive())
+            return single(fn.applyFlux(Flux.just(input)).collectList().block());
+        return fn.apply(input);
+    }
+
+    private static Object single(Object result) {
+        return result instanceof Collection && ((Collection<?>) result).size() == 1
+                ? ((Collection<?>) result).iterator().next()
+                : result;
+    }
+
+    /** Like {@link #invoke}, but off the caller's thread, on {@link #scheduler()}. */
+    public Mono<Output> invokeAsync(ByteString input, String contentType) {
+        return runOn(Mono.fromCallable(() -> invoke(input, contentType)));
+    }
+
+    public Scheduler scheduler() {
+        return schedulers.forRequests();
+    }
+
+    /** Subscribes to {@code work} on {@link #scheduler()} once it has room, see {@link FnSchedulers#runOn}. */
+    public <T> Mono<T> runOn(Mono<T> work) {
+        return schedulers.runOn(scheduler(), work);
+    }
+
+    @Value
+    public static class Output {
+        ByteString data;
+        String contentType;
+    }
+}
@@ -3,6 +3,7 @@ package io.kettil.fn;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.web.bind.annotation.RestController;
 
 @SpringBootApplication
@@ -12,6 +13,10 @@ public class FnInvokerApplication {
     //curl http://localhost:8080 -XPOST -H "Content-Type: application/json" -d "33"
 
     public static void main(String[] args) {
-        SpringApplication.run(FnInvokerApplication.class);
+        ConfigurableApplicationContext context = SpringApplication.run(FnInvokerApplication.class, args);
+
+        // A training run records the classes loaded up to here into the class-data archive on exit
+        if (context.getBean(FnProperties.class).isTraining())
+            System.exit(SpringApplication.exit(context));
     }
 }
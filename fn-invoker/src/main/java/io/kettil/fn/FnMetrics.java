@@ -0,0 +1,90 @@
+package io.kettil.fn;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Component
+@Getter
+@Slf4j
+public class FnMetrics {
+    private final MeterRegistry registry;
+    private final Timer apply;
+    private final Timer latency;
+    private final Counter publishErrors;
+    private final Counter ackErrors;
+    private final Counter duplicates;
+    private final Counter retries;
+    private final Counter failed;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<Integer, Counter> records = new ConcurrentHashMap<>();
+    private final AtomicLong firstRecordMillis = new AtomicLong(-1);
+
+    public FnMetrics(MeterRegistry registry) {
+        this.registry = registry;
+
+        apply = Timer.builder("fn.apply")
+                .description("Time spent in the function per call")
+                .register(registry);
+        latency = Timer.builder("fn.latency")
+                .description("Time from receiving a record until its outputs are published")
+                .register(registry);
+        publishErrors = Counter.builder("fn.publish.errors")
+                .register(registry);
+        ackErrors = Counter.builder("fn.ack.errors")
+                .register(registry);
+        duplicates = Counter.builder("fn.duplicates")
+                .description("Replayed records skipped because their outputs were already published")
+                .register(registry);
+
+        retries = Counter.builder("fn.retries")
+                .description("Retried function calls and publishes")
+                .register(registry);
+        failed = Counter.builder("fn.failed")
+                .description("Records given up on and dead-lettered or dropped")
+                .register(registry);
+
+        Gauge.builder("fn.inflight", inFlight, AtomicInteger::get)
+                .description("Records received and not yet completed")
+                .register(registry);
+
+        Gauge.builder("fn.startup.first.record", firstRecordMillis, AtomicLong::get)
+                .description("Milliseconds from JVM start until the first record completed, -1 until then")
+                .baseUnit("milliseconds")
+                .register(registry);
+    }
+
+    public void received(int partition) {
+        records.computeIfAbsent(partition, p -> Counter.builder("fn.records")
+                .tag("partition", Integer.toString(p))
+                .register(registry))
+                .increment();
+
+        inFlight.incrementAndGet();
+    }
+
+    public void completed() {
+        inFlight.decrementAndGet();
+
+        if (firstRecordMillis.get() < 0) {
+            long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            if (firstRecordMillis.compareAndSet(-1, uptime))
+                log.info("First record completed {} ms after JVM start", uptime);
+        }
+    }
+
+    public void published(long startNanos) {
+        latency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -3,9 +3,19 @@ package io.kettil.fn;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
+import javax.validation.Valid;
+import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @Component
 @ConfigurationProperties(prefix = "fn")
@@ -26,4 +36,229 @@ public class FnProperties {
 
     @NotNull
     private String outTopic;
+
+    /** Output names a routed result may use in its destination header, mapped to their topics. */
+    private final Map<String, String> outputs = new LinkedHashMap<>();
+
+    @Min(1)
+    private int concurrency = 16;
+
+    private boolean ordered = true;
+
+    @NotNull
+    private Duration drainTimeout = Duration.ofSeconds(10);
+
+    @Min(1)
+    private int logSample = 1000;
+
+    /** Registers the function classes directly instead of booting the function deployer. */
+    private boolean fastStart;
+
+    /** Resolves the function and exits without subscribing; used to record a class-data archive. */
+    private boolean training;
+
+    @Data
+    public static class AckProps {
+        @Min(1)
+        private int maxCount = 500;
+
+        @NotNull
+        private Duration interval = Duration.ofSeconds(1);
+    }
+
+    @Valid
+    private final AckProps ack = new AckProps();
+
+    @Data
+    public static class BatchProps {
+        @Min(1)
+        private int size = 1;
+
+        @NotNull
+        private Duration linger = Duration.ofMillis(10);
+    }
+
+    @Valid
+    private final BatchProps batch = new BatchProps();
+
+    @Data
+    public static class BufferPoolProps {
+        @Min(1)
+        private int size = 256;
+
+        @Min(1)
+        private int initialCapacity = 1024;
+
+        @Min(1)
+        private int maxRetained = 64 * 1024;
+    }
+
+    @Valid
+    private final BufferPoolProps bufferPool = new BufferPoolProps();
+
+    public enum ExecutionMode {
+        TRANSPORT,
+        POOL,
+        PARTITION,
+        /** A new virtual thread per call, for blocking functions; needs Java 21. */
+        VIRTUAL
+    }
+
+    @Data
+    public static class ExecutionProps {
+        @NotNull
+        private ExecutionMode mode = ExecutionMode.TRANSPORT;
+
+        @Min(1)
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        @Min(1)
+        private int queueSize = 10_000;
+    }
+
+    @Valid
+    private final ExecutionProps execution = new ExecutionProps();
+
+    @Data
+    public static class FlowProps {
+        @Min(1)
+        private int prefetch = 64;
+
+        @NotNull
+        private DataSize maxBytes = DataSize.ofMegabytes(64);
+
+        private boolean adaptive;
+
+        @Min(0)
+        private long highLag = 10_000;
+
+        @Min(1)
+        private int highLagPrefetch = 512;
+
+        @NotNull
+        private Duration lagInterval = Duration.ofSeconds(10);
+    }
+
+    @Valid
+    private final FlowProps flow = new FlowProps();
+
+    public enum ReactiveMode {
+        /**
+         * Each record is passed to the function as a one-element Flux and acknowledged once every
+         * output it produced has been published.
+         */
+        RECORD,
+        /**
+         * The partition is wired into a single Flux and a record is acknowledged as soon as the
+         * function pulls it, so delivery is at-most-once: outputs lost to a crash or a failed publish
+         * are not redelivered.
+         */
+        STREAM
+    }
+
+    @Data
+    public static class ReactiveProps {
+        @NotNull
+        private ReactiveMode mode = ReactiveMode.RECORD;
+    }
+
+    @Valid
+    private final ReactiveProps reactive = new ReactiveProps();
+
+    public enum KeyMode {
+        INPUT,
+        FIELD,
+        ID
+    }
+
+    @Data
+    public static class KeyProps {
+        @NotNull
+        private KeyMode mode = KeyMode.INPUT;
+
+        private String field;
+
+        @AssertTrue(message = "fn.key.field must be set when fn.key.mode is FIELD")
+        boolean isFieldSetWhenNeeded() {
+            return mode != KeyMode.FIELD || StringUtils.hasText(field);
+        }
+    }
+
+    @Valid
+    private final KeyProps key = new KeyProps();
+
+    @Data
+    public static class IdempotenceProps {
+        private boolean enabled;
+
+        @Min(64)
+        private int window = 64 * 1024;
+    }
+
+    @Valid
+    private final IdempotenceProps idempotence = new IdempotenceProps();
+
+    @Data
+    public static class CacheProps {
+        private boolean enabled;
+
+        @Min(1)
+        private long maxSize = 10_000;
+
+        private Duration ttl = Duration.ofMinutes(10);
+
+        private boolean output = true;
+    }
+
+    @Valid
+    private final CacheProps cache = new CacheProps();
+
+    @Data
+    public static class RetryProps {
+        @Min(1)
+        private int maxAttempts = 3;
+
+        @NotNull
+        private Duration backoff = Duration.ofMillis(100);
+
+        @NotNull
+        private Duration maxBackoff = Duration.ofSeconds(10);
+
+        @DecimalMin("0.0")
+        @DecimalMax("1.0")
+        private double jitter = 0.5;
+
+        private String deadLetterTopic;
+    }
+
+    @Valid
+    private final RetryProps retry = new RetryProps();
+
+    @Data
+    public static class CodecProps {
+        /** Used for records without a data content type and for results of no more specific type. */
+        @NotNull
+        private String defaultContentType = "application/json";
+
+        /** Writes every result with this content type instead of choosing by result type. */
+        private String output;
+    }
+
+    @Valid
+    private final CodecProps codec = new CodecProps();
+
+    @Data
+    public static class GrpcProps {
+        /** Off unless asked for, so that an invoker only listens on the ports it is known to expose. */
+        private boolean enabled;
+
+        @Min(0)
+        private int port = 9090;
+
+        @NotNull
+        private DataSize maxInboundMessageSize = DataSize.ofMegabytes(16);
+    }
+
+    @Valid
+    private final GrpcProps grpc = new GrpcProps();
 }
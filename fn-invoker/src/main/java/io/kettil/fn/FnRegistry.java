@@ -0,0 +1,134 @@
+package io.kettil.fn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.function.context.FunctionCatalog;
+import org.springframework.cloud.function.context.FunctionProperties;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry.FunctionInvocationWrapper;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@Component
+@Slf4j
+public class FnRegistry {
+    private final FunctionCatalog catalog;
+    private final FunctionProperties functionProperties;
+    private final ObjectMapper mapper;
+    private final MeterRegistry meterRegistry;
+    private final String functionClass;
+    private final ApplicationEventPublisher publisher;
+
+    private volatile ResolvedFunction function;
+
+    public FnRegistry(
+            FunctionCatalog catalog,
+            FunctionProperties functionProperties,
+            ObjectMapper mapper,
+            MeterRegistry meterRegistry,
+            @Value("${spring.cloud.function.function-class:}") String functionClass,
+            ApplicationEventPublisher publisher) {
+        this.catalog = catalog;
+        this.functionProperties = functionProperties;
+        this.mapper = mapper;
+        this.meterRegistry = meterRegistry;
+        this.functionClass = functionClass;
+        this.publisher = publisher;
+    }
+
+    public ResolvedFunction getFunction() {
+        ResolvedFunction fn = function;
+        if (fn == null) {
+            synchronized (this) {
+                fn = function;
+                if (fn == null)
+                    fn = refresh();
+            }
+        }
+
+        return fn;
+    }
+
+    @EventListener(ContextRefreshedEvent.class)
+    public void onContextRefreshed() {
+        String[] names = stageNames();
+        if (catalog.lookup(names.length > 1 ? names[0] : functionProperties.getDefinition()) != null)
+            refresh();
+    }
+
+    /**
+     * Resolves the function again from the catalog, and publishes a {@link FunctionRefreshedEvent}
+     * so that nothing keeps serving results of the one it replaces.
+     */
+    public synchronized ResolvedFunction refresh() {
+        String[] names = stageNames();
+
+        if (names.length > 1) {
+            List<ResolvedFunction.Stage> stages = new ArrayList<>(names.length);
+            for (int i = 0; i < names.length; i++) {
+                Timer timer = Timer.builder("fn.stage")
+                        .description("Time spent in one stage of a fused pipeline per call")
+                        .tag("stage", names[i])
+                        .tag("index", Integer.toString(i))
+                        .register(meterRegistry);
+
+                stages.add(new ResolvedFunction.Stage(new ResolvedFunction(lookup(names[i]), mapper), timer));
+            }
+
+            function = new ResolvedFunction(stages, mapper);
+        } else {
+            function = new ResolvedFunction(lookup(functionProperties.getDefinition()), mapper);
+        }
+
+        log.info("Resolved function {}", function.getDefinition());
+
+        publisher.publishEvent(new FunctionRefreshedEvent(this, function));
+
+        return function;
+    }
+
+    private FunctionInvocationWrapper lookup(String definition) {
+        FunctionInvocationWrapper wrapper = catalog.lookup(definition);
+        if (wrapper == null)
+            throw new IllegalStateException("Function not found: " + definition);
+
+        return wrapper;
+    }
+
+    // A pipeline is either given as a composed definition, "a|b|c", or as several function classes,
+    // "com.x.A;com.x.B", which the function deployer registers under their uncapitalized simple names.
+    private String[] stageNames() {
+        String definition = functionProperties.getDefinition();
+        if (StringUtils.hasText(definition))
+            return StringUtils.tokenizeToStringArray(definition, "|");
+
+        return Arrays.stream(StringUtils.tokenizeToStringArray(functionClass, ";"))
+                .map(className -> StringUtils.uncapitalize(ClassUtils.getShortName(className)))
+                .toArray(String[]::new);
+    }
+
+    /** The function has been resolved, again or for the first time. */
+    public static class FunctionRefreshedEvent extends ApplicationEvent {
+        private final ResolvedFunction function;
+
+        public FunctionRefreshedEvent(FnRegistry source, ResolvedFunction function) {
+            super(source);
+            this.function = function;
+        }
+
+        public ResolvedFunction getFunction() {
+            return function;
+        }
+    }
+}
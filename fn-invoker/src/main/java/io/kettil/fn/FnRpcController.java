@@ -1,27 +1,140 @@
 package io.kettil.fn;
 
-import org.springframework.cloud.function.context.FunctionCatalog;
-import org.springframework.cloud.function.context.FunctionProperties;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.UnsafeByteOperations;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.util.function.Function;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * Invokes the function over HTTP. Function code and result serialization run on
+ * {@link FnInvoker#scheduler()}, never on the event loop, and results are written back already
+ * encoded. A single value may be in any content type {@link PayloadCodecs} knows; bulk requests are
+ * JSON.
+ */
 @RestController
+@Slf4j
 public class FnRpcController {
-    private final FunctionCatalog catalog;
-    private final FunctionProperties functionProperties;
+    private final FnRegistry registry;
+    private final FnInvoker invoker;
+    private final FnCache cache;
+    private final FnMetrics metrics;
+    private final FnProperties fnProperties;
+    private final ObjectMapper mapper;
+    private final PayloadCodec json;
 
-    public FnRpcController(FunctionCatalog functionCatalog, FunctionProperties functionProperties) {
-        this.catalog = functionCatalog;
-        this.functionProperties = functionProperties;
+    public FnRpcController(FnRegistry registry, FnInvoker invoker, FnCache cache, FnMetrics metrics, FnProperties fnProperties, ObjectMapper mapper, PayloadCodecs codecs) throws IOException {
+        this.registry = registry;
+        this.invoker = invoker;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.fnProperties = fnProperties;
+        this.mapper = mapper;
+        this.json = codecs.forContentType(PayloadCodecs.JSON);
     }
 
-    @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public Object invoke(@RequestBody Object value) {
-        Function<Object, Object> objectFunction = catalog.lookup(functionProperties.getDefinition());
-        return objectFunction.apply(value);
+    @PostMapping
+    public Mono<ResponseEntity<byte[]>> invoke(@RequestBody byte[] body, @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType) {
+        return invoker.invokeAsync(UnsafeByteOperations.unsafeWrap(body), contentType)
+                .map(output -> ResponseEntity.ok()
+                        .contentType(MediaType.parseMediaType(output.getContentType()))
+                        .body(output.getData().toByteArray()))
+                .onErrorMap(PayloadCodecs.UnsupportedContentTypeException.class,
+                        e -> new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, e.getMessage(), e));
+    }
+
+    /**
+     * Applies the function to each item of a JSON array or NDJSON body and streams the results back
+     * as NDJSON, in input order. Up to {@code fn.concurrency} items are in flight at a time; a batch
+     * function is called with up to {@code fn.batch.size} items and a reactive one with the whole
+     * stream. An item that fails gets an {@code {"error": ...}} line in place of its result, one per
+     * item of a failed batch, and the rest carry on. A reactive function's outputs cannot be traced
+     * back to items, so its stream ends with the error line instead.
+     */
+    @PostMapping(path = "/bulk", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE}, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<byte[]> invokeBulk(@RequestBody Flux<JsonNode> items) {
+        ResolvedFunction fn = registry.getFunction();
+        int concurrency = fnProperties.getConcurrency();
+
+        if (fn.isReactive()) {
+            Flux<Object> inputs = items
+                    .publishOn(invoker.scheduler())
+                    .handle((item, sink) -> {
+                        try {
+                            sink.next(fn.read(item));
+                        } catch (IOException e) {
+                            sink.error(e);
+                        }
+                    });
+
+            return fn.applyFlux(inputs)
+                    .concatMap(result -> Mono.fromCallable(() -> line(fn.write(result))))
+                    .onErrorResume(e -> Mono.fromCallable(() -> error(e)));
+        }
+
+        if (fn.isBatch()) {
+            return items
+                    .buffer(fnProperties.getBatch().getSize())
+                    .flatMapSequential(batch -> invoker.runOn(Mono.fromCallable(() -> applyBatch(fn, batch)))
+                            .onErrorResume(e -> Mono.fromCallable(() -> Collections.nCopies(batch.size(), error(e)))), concurrency)
+                    .flatMapIterable(lines -> lines);
+        }
+
+        return items.flatMapSequential(item -> invoker.runOn(Mono.fromCallable(() -> line(apply(fn, item))))
+                .onErrorResume(e -> Mono.fromCallable(() -> error(e))), concurrency);
+    }
+
+    private byte[] apply(ResolvedFunction fn, JsonNode item) throws Exception {
+        if (cache.isEnabled()) {
+            FnCache.Result result = cache.apply(fn, UnsafeByteOperations.unsafeWrap(mapper.writeValueAsBytes(item)), json);
+            return result.getBytes() != null && PayloadCodecs.JSON.equals(result.getContentType())
+                    ? result.getBytes().toByteArray()
+                    : fn.write(result.getValue());
+        }
+
+        Object input = fn.read(item);
+        return fn.write(metrics.getApply().recordCallable(() -> fn.apply(input)));
+    }
+
+    private List<byte[]> applyBatch(ResolvedFunction fn, List<JsonNode> batch) throws Exception {
+        List<Object> inputs = new ArrayList<>(batch.size());
+        for (JsonNode item : batch)
+            inputs.add(fn.read(item));
+
+        Object result = metrics.getApply().recordCallable(() -> fn.apply(inputs));
+        Collection<?> results = result instanceof Collection ? (Collection<?>) result : Collections.singletonList(result);
+
+        List<byte[]> lines = new ArrayList<>(results.size());
+        for (Object value : results)
+            lines.add(line(fn.write(value)));
+        return lines;
+    }
+
+    private byte[] error(Throwable e) throws IOException {
+        log.debug("Bulk item failed", e);
+        return line(mapper.writeValueAsBytes(Collections.singletonMap("error", e.getClass().getName() + ": " + e.getMessage())));
+    }
+
+    private static byte[] line(byte[] json) {
+        byte[] line = Arrays.copyOf(json, json.length + 1);
+        line[json.length] = '\n';
+        return line;
     }
 }
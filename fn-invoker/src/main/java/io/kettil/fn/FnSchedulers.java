@@ -0,0 +1,165 @@
+package io.kettil.fn;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses where function code runs: on the gRPC transport thread that delivered the record, on a
+ * bounded worker pool shared by all partitions, on a single thread per assigned partition, or on a
+ * virtual thread per call.
+ */
+@Component
+@Slf4j
+public class FnSchedulers implements DisposableBean {
+    private final FnProperties.ExecutionProps props;
+    private final Scheduler pool;
+    private final WorkerSlots slots;
+    private final Set<Scheduler> partitions = ConcurrentHashMap.newKeySet();
+
+    public FnSchedulers(FnProperties fnProperties, MeterRegistry meterRegistry) {
+        this.props = fnProperties.getExecution();
+
+        if (props.getMode() == FnProperties.ExecutionMode.POOL) {
+            // Work gated by runOn gives back its slot as it completes, still on its worker thread, so
+            // the queue has room for one more call per thread than there are slots
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    props.getThreads(),
+                    props.getThreads(),
+                    0L,
+                    TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(props.getQueueSize() + props.getThreads()),
+                    new CustomizableThreadFactory("fn-worker-"),
+                    FnSchedulers::overflow);
+
+            pool = Schedulers.fromExecutorService(
+                    ExecutorServiceMetrics.monitor(meterRegistry, executor, "fn.worker"),
+                    "fn-worker");
+            slots = new WorkerSlots(props.getThreads() + props.getQueueSize());
+        } else if (props.getMode() == FnProperties.ExecutionMode.VIRTUAL) {
+            // Only fn.concurrency calls per partition are in flight, which bounds the virtual threads
+            pool = Schedulers.fromExecutorService(
+                    ExecutorServiceMetrics.monitor(meterRegistry, newVirtualThreadPerTaskExecutor(), "fn.worker"),
+                    "fn-virtual");
+            slots = null;
+        } else {
+            pool = null;
+            slots = null;
+        }
+
+        Gauge.builder("fn.execution.threads", props, FnProperties.ExecutionProps::getThreads)
+                .tag("mode", props.getMode().name().toLowerCase())
+                .register(meterRegistry);
+        Gauge.builder("fn.execution.queue.capacity", props, FnProperties.ExecutionProps::getQueueSize)
+                .tag("mode", props.getMode().name().toLowerCase())
+                .register(meterRegistry);
+        Gauge.builder("fn.execution.partitions", partitions, Set::size)
+                .register(meterRegistry);
+        if (slots != null)
+            Gauge.builder("fn.execution.slots.available", slots, WorkerSlots::available)
+                    .register(meterRegistry);
+
+        log.info("Executing functions in {} mode", props.getMode());
+    }
+
+    /**
+     * Where the function runs for one lease of {@code partition}. In per-partition mode every lease
+     * gets a thread of its own, so a partition assigned again while the previous lease is still
+     * winding down does not share, or have disposed under it, that lease's thread. Hand the scheduler
+     * back with {@link #release} once the lease has finished.
+     */
+    public Scheduler forPartition(int partition) {
+        switch (props.getMode()) {
+            case POOL:
+            case VIRTUAL:
+                return pool;
+            case PARTITION:
+                Scheduler scheduler = Schedulers.newSingle("fn-partition-" + partition);
+                partitions.add(scheduler);
+                return scheduler;
+            default:
+                return Schedulers.immediate();
+        }
+    }
+
+    /**
+     * Where HTTP invocations run. They must never run on the event loop, so the transport and
+     * per-partition modes fall back to Reactor's bounded elastic scheduler.
+     */
+    public Scheduler forRequests() {
+        return pool != null ? pool : Schedulers.boundedElastic();
+    }
+
+    /**
+     * Subscribes to {@code work} on {@code scheduler}. On the worker pool that waits until one of its
+     * threads or queue slots is free, holding neither a thread nor the pool's queue meanwhile, so a
+     * saturated pool keeps each partition's concurrency slots taken and its receive stream stops
+     * requesting records until a call completes.
+     */
+    public <T> Mono<T> runOn(Scheduler scheduler, Mono<T> work) {
+        Mono<T> scheduled = work.subscribeOn(scheduler);
+        return slots != null && scheduler == pool ? slots.run(scheduled) : scheduled;
+    }
+
+    /** Like {@link #runOn(Scheduler, Mono)}, holding the slot until {@code work} terminates. */
+    public <T> Flux<T> runOn(Scheduler scheduler, Flux<T> work) {
+        Flux<T> scheduled = work.subscribeOn(scheduler);
+        return slots != null && scheduler == pool ? slots.run(scheduled) : scheduled;
+    }
+
+    /**
+     * Takes tasks the full worker queue cannot: those not gated by {@link #runOn}, such as a reactive
+     * function's {@code publishOn} drains, go to Reactor's bounded elastic scheduler. Never runs them
+     * on the submitting thread, which may be a gRPC transport thread serving other partitions. Only a
+     * pool that has been shut down rejects tasks.
+     */
+    private static void overflow(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown())
+            throw new RejectedExecutionException("Worker pool has been shut down");
+
+        Schedulers.boundedElastic().schedule(task);
+    }
+
+    // Looked up reflectively since the invoker is built for Java 8
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual thread execution needs Java 21 or later, running on " + System.getProperty("java.version"));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create a virtual thread executor", e);
+        }
+    }
+
+    /** Disposes a scheduler returned by {@link #forPartition} if it is a per-lease one. */
+    public void release(Scheduler scheduler) {
+        if (partitions.remove(scheduler))
+            scheduler.dispose();
+    }
+
+    @Override
+    public void destroy() {
+        partitions.forEach(Scheduler::dispose);
+        partitions.clear();
+
+        if (pool != null)
+            pool.dispose();
+    }
+}
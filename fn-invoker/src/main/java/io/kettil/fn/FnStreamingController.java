@@ -1,79 +1,101 @@
 package io.kettil.fn;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.bsideup.liiklus.protocol.*;
 import com.google.protobuf.ByteString;
-import io.grpc.ManagedChannel;
-import io.grpc.netty.NettyChannelBuilder;
+import com.salesforce.reactorgrpc.stub.ReactorCallOptions;
+import io.grpc.Status;
+import io.kettil.fn.liiklus.LiiklusClient;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
-import org.springframework.cloud.function.context.FunctionCatalog;
-import org.springframework.cloud.function.context.FunctionProperties;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+import reactor.util.retry.Retry;
 
 import java.io.IOException;
 import java.time.Duration;
-import java.time.temporal.ChronoUnit;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 @Service
 @Slf4j
-public class FnStreamingController implements CommandLineRunner {
+public class FnStreamingController implements CommandLineRunner, DisposableBean {
     @Autowired
     private FnProperties fnProperties;
 
     @Autowired
-    private FunctionCatalog catalog;
+    private FnRegistry registry;
 
     @Autowired
-    private FunctionProperties functionProperties;
+    private EventEncoder encoder;
 
     @Autowired
-    private ObjectMapper mapper;
+    private FnSchedulers schedulers;
 
-    @Value("${liiklus.host}")
-    private String liiklusHost;
+    @Autowired
+    private ByteBudget budget;
+
+    @Autowired
+    private LagMonitor lagMonitor;
+
+    @Autowired
+    private FnMetrics metrics;
+
+    @Autowired
+    private FnCache cache;
 
-    @Value("${liiklus.port}")
-    private int liiklusPort;
+    @Autowired
+    private LiiklusProperties liiklusProperties;
+
+    @Autowired
+    private PayloadCodecs codecs;
 
     private final CountDownLatch latch = new CountDownLatch(1);
 
-    @Override
-    public void run(String... args) throws Exception {
-        System.out.println("fnProperties=" + fnProperties);
+    private final Map<Integer, Lease> leases = new ConcurrentHashMap<>();
 
-        ManagedChannel channel = NettyChannelBuilder.forTarget(liiklusHost + ":" + liiklusPort)
-                .directExecutor()
-                .usePlaintext()
-                .build();
+    // The latest assignment of each partition, so that a failed session is not retried once superseded
+    private final Map<Integer, Assignment> assignments = new ConcurrentHashMap<>();
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            log.info("shutting down");
+    private volatile boolean shuttingDown;
 
-            channel.shutdown();
+    private volatile LiiklusClient client;
 
-            try {
-                channel.awaitTermination(1000, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                // Already in shutdown hook--don't call Thread.currentThread().interrupt()
-            } finally {
-                channel.shutdownNow();
-            }
+    private Retry retry;
 
-            latch.countDown();
-        }));
+    // Kept across revocations so that a partition assigned back to this instance can skip the
+    // replayed records it already published.
+    private final Map<Integer, DedupeWindow> dedupeWindows = new ConcurrentHashMap<>();
 
-        log.info("opened channel");
+    @Override
+    public void run(String... args) throws Exception {
+        log.info("fnProperties={}", fnProperties);
+
+        retry = retrySpec();
+
+        client = new LiiklusClient(liiklusProperties.getTargets(), liiklusProperties.toOptions());
 
-        ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub = ReactorLiiklusServiceGrpc.newReactorStub(channel);
+        if (fnProperties.isTraining()) {
+            train();
+            return;
+        }
 
-        log.info("created service stub");
+        LiiklusClient.Session session = client.session();
 
         SubscribeRequest inSubscribeRequest = SubscribeRequest.newBuilder()
                 .setTopic(fnProperties.getInTopic())
@@ -81,58 +103,474 @@ public class FnStreamingController implements CommandLineRunner {
                 .setAutoOffsetReset(SubscribeRequest.AutoOffsetReset.EARLIEST)
                 .build();
 
-        stub.subscribe(inSubscribeRequest)
+        lagMonitor.start(client.stub(), inSubscribeRequest);
+
+        session.stub().subscribe(inSubscribeRequest)
                 .filter(it -> it.getReplyCase() == SubscribeReply.ReplyCase.ASSIGNMENT)
                 .map(SubscribeReply::getAssignment)
                 .doOnNext(assignment -> log.info("Assigned to partition {}", assignment.getPartition()))
-                .flatMap(assignment -> stub
-                        .receive(ReceiveRequest.newBuilder().setAssignment(assignment).build())
-                        .map(ReceiveReply::getRecord)
-                        .doOnNext(record -> {
-                            System.out.println("processing record=" + record);
+                .flatMap(assignment -> {
+                    assignments.put(assignment.getPartition(), assignment);
 
-                            try {
-                                Object value = mapper.readValue(record.getValue().toByteArray(), Object.class);
-                                Function<Object, Object> fn = catalog.lookup(functionProperties.getDefinition());
-
-                                Object result = fn.apply(value);
-
-                                stub.publish(
-                                        PublishRequest.newBuilder()
-                                                .setTopic(fnProperties.getOutTopic())
-                                                .setKey(ByteString.copyFromUtf8(UUID.randomUUID().toString()))
-                                                .setLiiklusEvent(
-                                                        LiiklusEvent.newBuilder()
-                                                                .setId(UUID.randomUUID().toString())
-                                                                .setType("io.kettil.fn.event")
-                                                                .setSource("/example")
-                                                                .setDataContentType("application/json")
-                                                                .setData(ByteString.copyFrom(mapper.writeValueAsBytes(result)))
-                                                )
-                                                .build())
-                                        .block(Duration.of(1000, ChronoUnit.MILLIS));
-
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            } finally {
-                                log.info("ACKing partition {} offset {}", assignment.getPartition(), record.getOffset());
-                                stub.ack(
-                                        AckRequest.newBuilder()
-                                                .setTopic(inSubscribeRequest.getTopic())
-                                                .setGroup(inSubscribeRequest.getGroup())
-                                                .setGroupVersion(inSubscribeRequest.getGroupVersion())
-                                                .setPartition(assignment.getPartition())
-                                                .setOffset(record.getOffset())
-                                                .build()
-                                );
-                            }
-                        })
-                )
+                    // A partition assigned again, after a rebalance, is only received once the previous
+                    // session has finished its in-flight records and committed them.
+                    Lease previous = leases.get(assignment.getPartition());
+                    Mono<Void> handover = previous != null ? drain(previous) : Mono.empty();
+
+                    return handover.then(receiveUntilRevoked(session, inSubscribeRequest, assignment));
+                }, Integer.MAX_VALUE)
+                .doOnError(e -> {
+                    // Closing the channels on shutdown fails the subscription too
+                    if (!shuttingDown)
+                        log.error("Subscription to {} failed", inSubscribeRequest.getTopic(), e);
+                })
+                .onErrorResume(e -> Mono.empty())
                 .doOnTerminate(latch::countDown)
                 .subscribe();
 
         log.info("running");
 
         latch.await();
+
+        // Without a subscription nothing is consumed; failing the run exits the process so that it is replaced
+        if (!shuttingDown)
+            throw new IllegalStateException("Subscription to " + inSubscribeRequest.getTopic() + " ended");
+    }
+
+    /**
+     * Loads the classes a real run needs, without connecting to Liiklus, so that a class-data archive
+     * recorded from this run covers them. Channels are created lazily, so nothing is dialled.
+     */
+    private void train() {
+        log.info("Training run, resolving {}", registry.getFunction().getDefinition());
+
+        client.stub();
+        client.session().stub(0);
+        retrySpec();
+        encoder.idFor(0, 0, 0);
+
+        client.shutdown(Duration.ofMillis(1000));
+        client = null;
+    }
+
+    // Runs before the schedulers, encoder and other beans this controller uses are destroyed
+    @Override
+    public void destroy() {
+        log.info("shutting down");
+        shuttingDown = true;
+
+        Flux.fromIterable(leases.values())
+                .flatMap(this::drain)
+                .then()
+                .block(fnProperties.getDrainTimeout().plusSeconds(1));
+
+        if (client != null)
+            client.shutdown(Duration.ofMillis(1000));
+
+        latch.countDown();
+    }
+
+    /**
+     * Stops receiving from a partition, waits up to {@code fn.drain-timeout} for its in-flight records
+     * to be processed and published, and commits the offsets that completed. Records still in flight
+     * after that are cancelled and left uncommitted, and the lease ends once its pipeline has stopped.
+     */
+    private Mono<Void> drain(Lease lease) {
+        log.info("Draining partition {}", lease.getAcks().getPartition());
+
+        lease.getGate().drain();
+
+        return lease.getDone().asMono()
+                .timeout(fnProperties.getDrainTimeout())
+                .onErrorResume(TimeoutException.class, e -> {
+                    log.warn("Partition {} did not drain within {}, cancelling its in-flight records", lease.getAcks().getPartition(), fnProperties.getDrainTimeout());
+                    lease.getCancel().tryEmitEmpty();
+                    return lease.getDone().asMono();
+                });
+    }
+
+    /**
+     * Receives from a partition until it is revoked. A failure, such as a record that could not be
+     * dead-lettered, ends only this partition's session, which is received again from its last
+     * committed offset after a backoff. The record that failed is therefore processed again.
+     */
+    private Mono<Void> receiveUntilRevoked(LiiklusClient.Session session, SubscribeRequest inSubscribeRequest, Assignment assignment) {
+        FnProperties.RetryProps props = fnProperties.getRetry();
+
+        return Mono.defer(() -> receive(session, inSubscribeRequest, assignment))
+                .doOnError(e -> {
+                    if (!shuttingDown)
+                        log.error("Partition {} failed", assignment.getPartition(), e);
+                })
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, props.getBackoff())
+                        .maxBackoff(props.getMaxBackoff())
+                        .jitter(props.getJitter())
+                        .filter(e -> !shuttingDown
+                                && assignments.get(assignment.getPartition()) == assignment
+                                && Status.fromThrowable(e).getCode() != Status.Code.NOT_FOUND)
+                        .doBeforeRetry(signal -> log.info("Receiving partition {} again", assignment.getPartition())))
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    private Mono<Void> receive(LiiklusClient.Session session, SubscribeRequest inSubscribeRequest, Assignment assignment) {
+        // Receiving must stay on the subscription's node; acks and publishes may use any channel
+        ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub = client.stub();
+
+        AckTracker acks = new AckTracker(
+                stub,
+                AckRequest.newBuilder()
+                        .setTopic(inSubscribeRequest.getTopic())
+                        .setGroup(inSubscribeRequest.getGroup())
+                        .setGroupVersion(inSubscribeRequest.getGroupVersion())
+                        .setPartition(assignment.getPartition())
+                        .build(),
+                fnProperties.getAck().getMaxCount(),
+                fnProperties.getAck().getInterval(),
+                metrics.getAckErrors());
+
+        Sinks.Empty<Void> done = Sinks.empty();
+        Sinks.Empty<Void> cancel = Sinks.empty();
+
+        Scheduler scheduler = schedulers.forPartition(assignment.getPartition());
+
+        CreditGate gate = new CreditGate(assignment.getPartition(), lagMonitor.creditsFor(assignment.getPartition()), budget);
+        lagMonitor.register(gate);
+
+        Lease lease = new Lease(acks, gate, done, cancel);
+        leases.put(assignment.getPartition(), lease);
+
+        Flux<ReceiveReply.LiiklusEventRecord> records = gate
+                .gate(session.stub(assignment.getPartition())
+                        .withOption(ReactorCallOptions.CALL_OPTIONS_PREFETCH, gate.getCredits())
+                        .withOption(ReactorCallOptions.CALL_OPTIONS_LOW_TIDE, Math.max(1, gate.getCredits() / 4))
+                        .receive(ReceiveRequest.newBuilder()
+                                .setAssignment(assignment)
+                                .setFormat(ReceiveRequest.ContentFormat.LIIKLUS_EVENT)
+                                .build())
+                        .map(ReceiveReply::getLiiklusEventRecord))
+                .doOnNext(record -> {
+                    if (log.isDebugEnabled() && record.getOffset() % fnProperties.getLogSample() == 0)
+                        log.debug("processing partition {} record={}", assignment.getPartition(), record);
+
+                    metrics.received(assignment.getPartition());
+                    acks.received(record.getOffset());
+                });
+
+        boolean streamed = registry.getFunction().isReactive() && fnProperties.getReactive().getMode() == FnProperties.ReactiveMode.STREAM;
+
+        // A streamed function completes records when it pulls them, before anything is
+        // published, so only the record-at-a-time paths can tell what is safe to skip.
+        DedupeWindow seen = fnProperties.getIdempotence().isEnabled() && !streamed
+                ? dedupeWindows.computeIfAbsent(assignment.getPartition(), p -> new DedupeWindow(fnProperties.getIdempotence().getWindow()))
+                : null;
+
+        Consumer<ReceiveReply.LiiklusEventRecord> completed = record -> {
+            if (seen != null)
+                seen.add(record.getOffset());
+            metrics.completed();
+            acks.completed(record.getOffset());
+            gate.release(record);
+        };
+
+        Flux<ReceiveReply.LiiklusEventRecord> fresh = seen == null ? records : records.filter(record -> {
+            if (!record.getReplay() || !seen.contains(record.getOffset()))
+                return true;
+
+            metrics.getDuplicates().increment();
+            completed.accept(record);
+            return false;
+        });
+
+        Mono<Void> processed = streamed
+                ? processReactive(stub, assignment.getPartition(), records, scheduler, completed)
+                : processRecords(stub, assignment.getPartition(), fresh, scheduler).doOnNext(completed).then();
+
+        return processed
+                .takeUntilOther(cancel.asMono())
+                .then(Mono.defer(acks::close))
+                .onErrorResume(e -> acks.close().then(Mono.error(e)))
+                .doFinally(signal -> {
+                    leases.remove(assignment.getPartition(), lease);
+                    lagMonitor.unregister(gate);
+                    gate.close();
+                    schedulers.release(scheduler);
+                    done.tryEmitEmpty();
+                });
+    }
+
+    // A batch function always takes a list, a batch of one when fn.batch.size is 1, and never goes
+    // through the cache, which holds one result per input.
+    private Flux<ReceiveReply.LiiklusEventRecord> processRecords(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, int partition, Flux<ReceiveReply.LiiklusEventRecord> records, Scheduler scheduler) {
+        ResolvedFunction fn = registry.getFunction();
+        int size = fnProperties.getBatch().getSize();
+
+        if (fn.isBatch() || size > 1 && !fn.isReactive()) {
+            Flux<List<ReceiveReply.LiiklusEventRecord>> batches = size > 1
+                    ? batch(records, size, fnProperties.getBatch().getLinger())
+                    : records.map(Collections::singletonList);
+
+            return (fnProperties.isOrdered()
+                    ? batches.flatMapSequential(batch -> processBatch(stub, partition, batch, scheduler), fnProperties.getConcurrency())
+                    : batches.flatMap(batch -> processBatch(stub, partition, batch, scheduler), fnProperties.getConcurrency()))
+                    .flatMapIterable(batch -> batch);
+        }
+
+        return fnProperties.isOrdered()
+                ? records.flatMapSequential(record -> process(stub, partition, record, scheduler), fnProperties.getConcurrency())
+                : records.flatMap(record -> process(stub, partition, record, scheduler), fnProperties.getConcurrency());
+    }
+
+    /**
+     * Groups records into batches of up to {@code size}, emitting a partial batch once the first
+     * record in it has waited for {@code linger}. The linger timer fires whether or not downstream
+     * has asked for another batch, so batches that are ready early are buffered rather than failing
+     * the stream. The credit gate upstream bounds how many records that buffer can hold.
+     */
+    static <T> Flux<List<T>> batch(Flux<T> records, int size, Duration linger) {
+        return records
+                .bufferTimeout(size, linger)
+                .onBackpressureBuffer();
+    }
+
+    /**
+     * Wires the partition into a reactive function with {@code fn.reactive.mode=stream}. The function
+     * owns its own buffering and concurrency and its outputs cannot be traced back to records, so a
+     * record counts as completed once the function has pulled it rather than when an output derived
+     * from it is published. Delivery is therefore at-most-once.
+     */
+    private Mono<Void> processReactive(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, int partition, Flux<ReceiveReply.LiiklusEventRecord> records, Scheduler scheduler, Consumer<ReceiveReply.LiiklusEventRecord> completed) {
+        ResolvedFunction fn = registry.getFunction();
+
+        // A record that cannot be decoded never reaches the function; it completes once dead-lettered
+        Flux<Object> inputs = records.concatMap(record -> {
+            Object value;
+            try {
+                value = read(fn, record);
+            } catch (IOException e) {
+                return deadLetter(stub, partition, record, e).then(Mono.<Object>fromRunnable(() -> completed.accept(record)));
+            }
+
+            completed.accept(record);
+            return Mono.just(value);
+        });
+
+        Flux<Object> outputs = fn.applyFlux(inputs.publishOn(scheduler));
+
+        return (fnProperties.isOrdered()
+                ? outputs.flatMapSequential(result -> publishOutput(stub, fn, result), fnProperties.getConcurrency())
+                : outputs.flatMap(result -> publishOutput(stub, fn, result), fnProperties.getConcurrency()))
+                .then();
+    }
+
+    // Outputs of a reactive function cannot be traced back to a record to dead-letter
+    private Mono<Void> publishOutput(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, ResolvedFunction fn, Object result) {
+        return publish(stub, () -> encoder.encodeAll(result, null, null))
+                .retryWhen(retry)
+                .onErrorResume(IOException.class, e -> {
+                    metrics.getFailed().increment();
+                    log.warn("Dropping an output of {} that could not be encoded", fn.getDefinition(), e);
+                    return Mono.empty();
+                });
+    }
+
+    // The events of one result, several when it is routed to more than one output, are published
+    // concurrently and complete together.
+    private Mono<Void> publish(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, Callable<List<EncodedEvent>> encode) {
+        return Mono
+                .using(
+                        encode,
+                        events -> Flux.fromIterable(events)
+                                .flatMap(event -> stub.publish(event.getRequest())
+                                        .doOnError(e -> metrics.getPublishErrors().increment()))
+                                .then(),
+                        events -> events.forEach(EncodedEvent::release));
+    }
+
+    /**
+     * Retries failed function calls and publishes with exponential backoff and jitter. Retries are
+     * scheduled on a timer rather than by sleeping, so in unordered mode the records behind a failing
+     * one keep flowing. Decoding and encoding failures are deterministic and never retried, and a
+     * call rejected by a scheduler that is shutting down is neither retried nor dead-lettered.
+     */
+    private Retry retrySpec() {
+        FnProperties.RetryProps props = fnProperties.getRetry();
+
+        return Retry.backoff(props.getMaxAttempts() - 1, props.getBackoff())
+                .maxBackoff(props.getMaxBackoff())
+                .jitter(props.getJitter())
+                .filter(e -> !(e instanceof IOException) && !isRejected(e))
+                .doBeforeRetry(signal -> metrics.getRetries().increment())
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    // The record is left unacknowledged, to be received again by whoever gets the partition next
+    private static boolean isRejected(Throwable e) {
+        return e instanceof RejectedExecutionException;
+    }
+
+    /**
+     * Gives up on a record whose processing failed: publishes it unchanged, with the error and its
+     * origin as event extensions, to {@code fn.retry.dead-letter-topic} or, without one, logs and
+     * drops it. Either way the record is then acknowledged, unless publishing it to the dead-letter
+     * topic fails too, which fails the partition's session and leaves the record to be received again.
+     */
+    private Mono<Void> deadLetter(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, int partition, ReceiveReply.LiiklusEventRecord record, Throwable error) {
+        metrics.getFailed().increment();
+
+        String topic = fnProperties.getRetry().getDeadLetterTopic();
+        if (topic == null) {
+            log.warn("Dropping partition {} offset {} after failure", partition, record.getOffset(), error);
+            return Mono.empty();
+        }
+
+        log.warn("Dead-lettering partition {} offset {} to {}: {}", partition, record.getOffset(), topic, error.toString());
+
+        return stub.publish(encoder.deadLetter(topic, partition, record, error))
+                .retryWhen(retry)
+                .then();
+    }
+
+    private Mono<ReceiveReply.LiiklusEventRecord> process(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, int partition, ReceiveReply.LiiklusEventRecord record, Scheduler scheduler) {
+        ResolvedFunction fn = registry.getFunction();
+        if (fn.isReactive())
+            return processEach(stub, partition, record, scheduler);
+
+        long start = System.nanoTime();
+
+        String id = encoder.idFor(partition, record.getOffset(), 0);
+
+        return schedulers
+                .runOn(scheduler, Mono.fromCallable(() -> {
+                    if (cache.isEnabled())
+                        return cache.apply(fn, record.getEvent().getData(), codecs.forContentType(record.getEvent().getDataContentType()));
+
+                    Object value = read(fn, record);
+                    return new FnCache.Result(metrics.getApply().recordCallable(() -> fn.apply(value)), null, null);
+                }))
+                .flatMap(result -> publish(stub, () -> result.getBytes() != null
+                        ? Collections.singletonList(encoder.encode(result.getValue(), result.getBytes(), result.getContentType(), record.getKey(), id))
+                        : encoder.encodeAll(result.getValue(), record.getKey(), id)))
+                .retryWhen(retry)
+                .doOnSuccess(reply -> metrics.published(start))
+                .thenReturn(record)
+                .onErrorResume(e -> !isRejected(e), e -> deadLetter(stub, partition, record, e).thenReturn(record));
+    }
+
+    /**
+     * Calls a reactive function with a Flux of just this record, so that every output can be traced
+     * back to it. The record completes only once all of them have been published, and the
+     * {@code n}th output gets the {@code n}th id derived from the record in idempotent mode.
+     */
+    private Mono<ReceiveReply.LiiklusEventRecord> processEach(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, int partition, ReceiveReply.LiiklusEventRecord record, Scheduler scheduler) {
+        ResolvedFunction fn = registry.getFunction();
+        long start = System.nanoTime();
+
+        return schedulers
+                .runOn(scheduler, Mono
+                        .fromCallable(() -> read(fn, record))
+                        .flatMap(value -> fn.applyFlux(Flux.just(value)).collectList()))
+                .flatMap(results -> Flux.fromIterable(results)
+                        .index()
+                        .concatMap(result -> publish(stub, () -> encoder.encodeAll(
+                                result.getT2(),
+                                record.getKey(),
+                                encoder.idFor(partition, record.getOffset(), result.getT1().intValue()))))
+                        .then())
+                .retryWhen(retry)
+                .doOnSuccess(v -> metrics.published(start))
+                .thenReturn(record)
+                .onErrorResume(e -> !isRejected(e), e -> deadLetter(stub, partition, record, e).thenReturn(record));
+    }
+
+    // Each record is read with the codec for its own data content type
+    private Object read(ResolvedFunction fn, ReceiveReply.LiiklusEventRecord record) throws IOException {
+        return fn.read(record.getEvent().getData(), codecs.forContentType(record.getEvent().getDataContentType()));
+    }
+
+    /**
+     * Applies the records of a batch that could be decoded together and dead-letters the ones that
+     * could not on their own, with their decoding error.
+     */
+    private Mono<List<ReceiveReply.LiiklusEventRecord>> processBatch(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, int partition, List<ReceiveReply.LiiklusEventRecord> batch, Scheduler scheduler) {
+        long start = System.nanoTime();
+        ResolvedFunction fn = registry.getFunction();
+
+        List<Object> values = new ArrayList<>(batch.size());
+        List<ReceiveReply.LiiklusEventRecord> inputs = new ArrayList<>(batch.size());
+        List<Tuple2<ReceiveReply.LiiklusEventRecord, IOException>> undecodable = new ArrayList<>();
+
+        Mono<Void> decode = Mono.fromRunnable(() -> {
+            for (ReceiveReply.LiiklusEventRecord record : batch) {
+                try {
+                    values.add(read(fn, record));
+                    inputs.add(record);
+                } catch (IOException e) {
+                    undecodable.add(Tuples.of(record, e));
+                }
+            }
+        });
+
+        Flux<PublishReply> applyAndPublish = Flux
+                .using(
+                        () -> {
+                            Collection<?> results = metrics.getApply().recordCallable(() -> {
+                                if (fn.isBatch()) {
+                                    Object result = fn.apply(values);
+                                    return result instanceof Collection ? (Collection<?>) result : Collections.singletonList(result);
+                                }
+
+                                List<Object> list = new ArrayList<>(values.size());
+                                for (Object value : values)
+                                    list.add(fn.apply(value));
+                                return list;
+                            });
+
+                            // Outputs line up with inputs unless a batch function changed the count, in
+                            // which case ids are numbered from the first record applied.
+                            boolean aligned = results.size() == inputs.size();
+
+                            List<EncodedEvent> events = new ArrayList<>(results.size());
+                            try {
+                                int i = 0;
+                                for (Object result : results) {
+                                    ReceiveReply.LiiklusEventRecord input = aligned ? inputs.get(i) : inputs.get(0);
+                                    events.addAll(encoder.encodeAll(
+                                            result,
+                                            aligned ? input.getKey() : null,
+                                            encoder.idFor(partition, input.getOffset(), aligned ? 0 : i)));
+                                    i++;
+                                }
+                            } catch (IOException | RuntimeException e) {
+                                events.forEach(EncodedEvent::release);
+                                throw e;
+                            }
+
+                            return events;
+                        },
+                        events -> Flux.fromIterable(events).flatMap(event -> stub.publish(event.getRequest())
+                                .doOnError(e -> metrics.getPublishErrors().increment())),
+                        events -> events.forEach(EncodedEvent::release));
+
+        Mono<Void> apply = schedulers.runOn(scheduler, applyAndPublish)
+                .retryWhen(retry)
+                .then(Mono.<Void>fromRunnable(() -> inputs.forEach(record -> metrics.published(start))))
+                .onErrorResume(e -> !isRejected(e), e -> Flux.fromIterable(inputs)
+                        .concatMap(record -> deadLetter(stub, partition, record, e))
+                        .then());
+
+        return schedulers.runOn(scheduler, decode)
+                .then(Mono.defer(() -> Flux.fromIterable(undecodable)
+                        .concatMap(failure -> deadLetter(stub, partition, failure.getT1(), failure.getT2()))
+                        .then()))
+                .then(Mono.defer(() -> inputs.isEmpty() ? Mono.<Void>empty() : apply))
+                .thenReturn(batch);
+    }
+
+    @lombok.Value
+    private static class Lease {
+        AckTracker acks;
+        CreditGate gate;
+        Sinks.Empty<Void> done;
+        Sinks.Empty<Void> cancel;
     }
 }
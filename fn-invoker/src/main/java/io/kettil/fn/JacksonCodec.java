@@ -0,0 +1,42 @@
+package io.kettil.fn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** JSON, or a binary encoding of the same data model such as Smile or CBOR. */
+public class JacksonCodec implements PayloadCodec {
+    private final String contentType;
+    private final ObjectMapper mapper;
+    private final ObjectWriter writer;
+    private final Map<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    public JacksonCodec(String contentType, ObjectMapper mapper) {
+        this.contentType = contentType;
+        this.mapper = mapper;
+        this.writer = mapper.writer();
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public Object read(ByteString data, Type type) throws IOException {
+        return readers.computeIfAbsent(type, t -> mapper.readerFor(mapper.constructType(t)))
+                .readValue(data.newInput());
+    }
+
+    @Override
+    public void write(Object value, OutputStream out) throws IOException {
+        writer.writeValue(out, value);
+    }
+}
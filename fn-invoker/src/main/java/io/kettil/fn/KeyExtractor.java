@@ -0,0 +1,67 @@
+package io.kettil.fn;
+
+import com.google.protobuf.ByteString;
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Chooses the key an output event is published with. Returning {@code null} lets the encoder fall
+ * back to the event id. Declare a bean of this type to replace the extractor selected by
+ * {@code fn.key.mode}.
+ */
+@FunctionalInterface
+public interface KeyExtractor {
+    /**
+     * @param inputKey key of the record the result was computed from, or {@code null} when the
+     *                 result cannot be traced back to a single record
+     * @param result   value returned by the function
+     */
+    ByteString extract(ByteString inputKey, Object result);
+
+    static KeyExtractor of(FnProperties.KeyProps props) {
+        switch (props.getMode()) {
+            case INPUT:
+                return (inputKey, result) -> inputKey == null || inputKey.isEmpty() ? null : inputKey;
+            case FIELD:
+                return field(props.getField());
+            default:
+                return (inputKey, result) -> null;
+        }
+    }
+
+    static KeyExtractor field(String field) {
+        if (!StringUtils.hasText(field))
+            throw new IllegalArgumentException("No field to take the key from, set fn.key.field");
+
+        // The getter is looked up once per result class rather than introspected for every record
+        ClassValue<Method> getters = new ClassValue<Method>() {
+            @Override
+            protected Method computeValue(Class<?> type) {
+                PropertyDescriptor descriptor = BeanUtils.getPropertyDescriptor(type, field);
+                Method getter = descriptor != null ? descriptor.getReadMethod() : null;
+                if (getter != null)
+                    ReflectionUtils.makeAccessible(getter);
+                return getter;
+            }
+        };
+
+        return (inputKey, result) -> {
+            Object value;
+            if (result == null)
+                value = null;
+            else if (result instanceof Map)
+                value = ((Map<?, ?>) result).get(field);
+            else {
+                Method getter = getters.get(result.getClass());
+                value = getter != null ? ReflectionUtils.invokeMethod(getter, result) : null;
+            }
+
+            return value == null ? null : ByteString.copyFromUtf8(value.toString());
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package io.kettil.fn;
+
+import com.github.bsideup.liiklus.protocol.GetEndOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.GetOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import com.github.bsideup.liiklus.protocol.SubscribeRequest;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Polls the group's committed offsets and the topic's end offsets and keeps the resulting
+ * per-partition lag. When adaptive prefetch is enabled, partitions lagging by more than
+ * {@code fn.flow.high-lag} get {@code fn.flow.high-lag-prefetch} credits instead of {@code fn.flow.prefetch}.
+ */
+@Component
+@Slf4j
+public class LagMonitor implements DisposableBean {
+    private final FnProperties.FlowProps props;
+    private final Map<Integer, Long> lags = new ConcurrentHashMap<>();
+    private final Map<Integer, CreditGate> gates = new ConcurrentHashMap<>();
+    private volatile Disposable poller;
+
+    private final MeterRegistry meterRegistry;
+
+    public LagMonitor(FnProperties fnProperties, MeterRegistry meterRegistry) {
+        this.props = fnProperties.getFlow();
+        this.meterRegistry = meterRegistry;
+    }
+
+    public void start(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, SubscribeRequest subscribeRequest) {
+        GetOffsetsRequest offsetsRequest = GetOffsetsRequest.newBuilder()
+                .setTopic(subscribeRequest.getTopic())
+                .setGroup(subscribeRequest.getGroup())
+                .setGroupVersion(subscribeRequest.getGroupVersion())
+                .build();
+
+        GetEndOffsetsRequest endOffsetsRequest = GetEndOffsetsRequest.newBuilder()
+                .setTopic(subscribeRequest.getTopic())
+                .build();
+
+        poller = Flux.interval(props.getLagInterval())
+                .onBackpressureDrop()
+                .concatMap(i -> Mono
+                        .zip(stub.getOffsets(offsetsRequest), stub.getEndOffsets(endOffsetsRequest))
+                        .doOnNext(offsets -> update(offsets.getT1().getOffsetsMap(), offsets.getT2().getOffsetsMap()))
+                        .onErrorResume(e -> {
+                            log.warn("Failed to poll offsets of topic {}", subscribeRequest.getTopic(), e);
+                            return Mono.empty();
+                        }), 1)
+                .subscribe();
+    }
+
+    public Map<Integer, Long> getLags() {
+        return Collections.unmodifiableMap(lags);
+    }
+
+    public long getLag(int partition) {
+        return lags.getOrDefault(partition, 0L);
+    }
+
+    public int creditsFor(int partition) {
+        return props.isAdaptive() && getLag(partition) > props.getHighLag()
+                ? props.getHighLagPrefetch()
+                : props.getPrefetch();
+    }
+
+    public void register(CreditGate gate) {
+        gates.put(gate.getPartition(), gate);
+    }
+
+    public void unregister(CreditGate gate) {
+        gates.remove(gate.getPartition(), gate);
+    }
+
+    private void update(Map<Integer, Long> committed, Map<Integer, Long> ends) {
+        ends.forEach((partition, end) -> {
+            long lag = lag(committed.get(partition), end);
+            if (lags.put(partition, lag) == null) {
+                Gauge.builder("fn.lag", lags, l -> l.getOrDefault(partition, 0L))
+                        .description("Records between the group's committed offset and the end of the partition")
+                        .tag("partition", Integer.toString(partition))
+                        .register(meterRegistry);
+            }
+
+            CreditGate gate = gates.get(partition);
+            if (gate != null && props.isAdaptive()) {
+                int credits = creditsFor(partition);
+                if (credits != gate.getCredits()) {
+                    log.info("Partition {} lags by {}, using {} credits", partition, lag, credits);
+                    gate.setCredits(credits);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records not yet committed: everything before {@code end} when the group has never committed an
+     * offset in the partition, and otherwise everything after the committed offset.
+     */
+    static long lag(Long committed, long end) {
+        return Math.max(0, committed == null ? end : end - committed - 1);
+    }
+
+    @Override
+    public void destroy() {
+        if (poller != null)
+            poller.dispose();
+    }
+}
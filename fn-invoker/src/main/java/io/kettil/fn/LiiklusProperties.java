@@ -0,0 +1,58 @@
+package io.kettil.fn;
+
+import io.kettil.fn.liiklus.LiiklusClient;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.validation.annotation.Validated;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@Component
+@ConfigurationProperties(prefix = "liiklus")
+@Validated
+@Data
+public class LiiklusProperties {
+    @NotNull
+    private String host;
+
+    private int port;
+
+    /** host:port of every node to use; when empty, the single node at host and port. */
+    private List<String> endpoints = new ArrayList<>();
+
+    @Min(1)
+    private int channels = 2;
+
+    @NotNull
+    private DataSize flowControlWindow = DataSize.ofMegabytes(1);
+
+    @NotNull
+    private Duration keepAliveTime = Duration.ofSeconds(30);
+
+    @NotNull
+    private Duration keepAliveTimeout = Duration.ofSeconds(10);
+
+    @NotNull
+    private DataSize maxInboundMessageSize = DataSize.ofMegabytes(16);
+
+    public List<String> getTargets() {
+        return endpoints.isEmpty() ? Collections.singletonList(host + ":" + port) : endpoints;
+    }
+
+    public LiiklusClient.Options toOptions() {
+        LiiklusClient.Options options = new LiiklusClient.Options();
+        options.setChannels(channels);
+        options.setFlowControlWindow((int) flowControlWindow.toBytes());
+        options.setKeepAliveTime(keepAliveTime);
+        options.setKeepAliveTimeout(keepAliveTimeout);
+        options.setMaxInboundMessageSize((int) maxInboundMessageSize.toBytes());
+        return options;
+    }
+}
@@ -0,0 +1,19 @@
+package io.kettil.fn;
+
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+
+/**
+ * Reads and writes event payloads of one {@code data_content_type}. Implementations are registered
+ * in {@link PayloadCodecs}.
+ */
+public interface PayloadCodec {
+    String getContentType();
+
+    Object read(ByteString data, Type type) throws IOException;
+
+    void write(Object value, OutputStream out) throws IOException;
+}
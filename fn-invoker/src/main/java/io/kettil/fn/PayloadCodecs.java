@@ -0,0 +1,108 @@
+package io.kettil.fn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Codecs keyed by {@code data_content_type}. Records are read with the codec their event names,
+ * JSON when it names none. Results are written as {@code fn.codec.output} when that is set, and
+ * otherwise by type: protobuf messages as protobuf, {@code byte[]} and {@link ByteString} as raw
+ * bytes, anything else as {@code fn.codec.default-content-type}. More codecs can be added by
+ * declaring {@link PayloadCodec} beans.
+ */
+@Component
+@Slf4j
+public class PayloadCodecs {
+    public static final String JSON = "application/json";
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final String CBOR = "application/cbor";
+
+    private final Map<String, PayloadCodec> codecs = new LinkedHashMap<>();
+    private final PayloadCodec defaultCodec;
+    private final PayloadCodec output;
+
+    public PayloadCodecs(FnProperties fnProperties, ObjectMapper mapper, Jackson2ObjectMapperBuilder builder, ObjectProvider<PayloadCodec> custom) {
+        register(new JacksonCodec(JSON, mapper));
+        register(new JacksonCodec(SMILE, builder.factory(new SmileFactory()).build()));
+        register(new JacksonCodec(CBOR, builder.factory(new CBORFactory()).build()));
+        register(new ProtobufCodec());
+        register(new RawCodec(RawCodec.BINARY, false));
+        register(new RawCodec(RawCodec.TEXT, true));
+        custom.orderedStream().forEach(this::register);
+
+        FnProperties.CodecProps props = fnProperties.getCodec();
+        this.defaultCodec = require(props.getDefaultContentType());
+        this.output = StringUtils.hasText(props.getOutput()) ? require(props.getOutput()) : null;
+
+        log.info("Payload codecs {}, writing {}", codecs.keySet(), output != null ? output.getContentType() : "by result type");
+    }
+
+    public Map<String, PayloadCodec> getCodecs() {
+        return Collections.unmodifiableMap(codecs);
+    }
+
+    public PayloadCodec getDefault() {
+        return defaultCodec;
+    }
+
+    /** The codec for a record's {@code data_content_type}; parameters such as charset are ignored. */
+    public PayloadCodec forContentType(String contentType) throws IOException {
+        if (!StringUtils.hasText(contentType))
+            return defaultCodec;
+
+        PayloadCodec codec = codecs.get(contentType);
+        if (codec == null)
+            codec = codecs.get(normalize(contentType));
+        if (codec == null)
+            throw new UnsupportedContentTypeException(contentType);
+
+        return codec;
+    }
+
+    public PayloadCodec forValue(Object value) {
+        if (output != null)
+            return output;
+        if (value instanceof MessageLite)
+            return codecs.get(ProtobufCodec.CONTENT_TYPE);
+        if (value instanceof byte[] || value instanceof ByteString)
+            return codecs.get(RawCodec.BINARY);
+
+        return defaultCodec;
+    }
+
+    private void register(PayloadCodec codec) {
+        codecs.put(normalize(codec.getContentType()), codec);
+    }
+
+    private PayloadCodec require(String contentType) {
+        PayloadCodec codec = codecs.get(normalize(contentType));
+        if (codec == null)
+            throw new IllegalStateException("No codec for content type " + contentType + ", have " + codecs.keySet());
+        return codec;
+    }
+
+    private static String normalize(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+    }
+
+    /** No codec is registered for a payload's content type. */
+    public static class UnsupportedContentTypeException extends IOException {
+        public UnsupportedContentTypeException(String contentType) {
+            super("Unsupported content type: " + contentType);
+        }
+    }
+}
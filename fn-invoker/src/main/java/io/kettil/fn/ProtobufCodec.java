@@ -0,0 +1,65 @@
+package io.kettil.fn;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import org.springframework.core.ResolvableType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Protocol buffers messages. The function's input type must be the generated message class, since
+ * the payload does not say which message it holds; {@code byte[]} and {@link ByteString} inputs get
+ * the payload as is.
+ */
+public class ProtobufCodec implements PayloadCodec {
+    public static final String CONTENT_TYPE = "application/x-protobuf";
+
+    private final Map<Class<?>, Method> parsers = new ConcurrentHashMap<>();
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public Object read(ByteString data, Type type) throws IOException {
+        Class<?> raw = ResolvableType.forType(type).resolve(Object.class);
+        if (raw == ByteString.class)
+            return data;
+        if (raw == byte[].class)
+            return data.toByteArray();
+        if (!Message.class.isAssignableFrom(raw))
+            throw new IOException("Cannot read " + CONTENT_TYPE + " into " + type + ", not a protobuf message");
+
+        try {
+            return parsers.computeIfAbsent(raw, ProtobufCodec::parser).invoke(null, data);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(Object value, OutputStream out) throws IOException {
+        if (!(value instanceof MessageLite))
+            throw new IOException("Cannot write " + value.getClass().getName() + " as " + CONTENT_TYPE);
+
+        ((MessageLite) value).writeTo(out);
+    }
+
+    private static Method parser(Class<?> type) {
+        try {
+            return type.getMethod("parseFrom", ByteString.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Not a generated protobuf message: " + type.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.kettil.fn;
+
+import com.google.protobuf.ByteString;
+import org.springframework.core.ResolvableType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Passes payloads through unchanged: as {@code byte[]}, {@link ByteString} or, for text, a UTF-8
+ * {@link String}.
+ */
+public class RawCodec implements PayloadCodec {
+    public static final String BINARY = "application/octet-stream";
+    public static final String TEXT = "text/plain";
+
+    private final String contentType;
+    private final boolean text;
+
+    public RawCodec(String contentType, boolean text) {
+        this.contentType = contentType;
+        this.text = text;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public Object read(ByteString data, Type type) throws IOException {
+        Class<?> raw = ResolvableType.forType(type).resolve(Object.class);
+        if (raw == ByteString.class)
+            return data;
+        if (raw == String.class || (text && raw == Object.class))
+            return data.toStringUtf8();
+        if (raw == byte[].class || raw == Object.class)
+            return data.toByteArray();
+
+        throw new IOException("Cannot read " + contentType + " into " + type);
+    }
+
+    @Override
+    public void write(Object value, OutputStream out) throws IOException {
+        if (value instanceof byte[])
+            out.write((byte[]) value);
+        else if (value instanceof ByteString)
+            ((ByteString) value).writeTo(out);
+        else if (value instanceof CharSequence || text)
+            out.write(value.toString().getBytes(StandardCharsets.UTF_8));
+        else
+            throw new IOException("Cannot write " + value.getClass().getName() + " as " + contentType);
+    }
+}
@@ -0,0 +1,172 @@
+package io.kettil.fn;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.protobuf.ByteString;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.Value;
+import org.reactivestreams.Publisher;
+import org.springframework.cloud.function.context.catalog.FunctionTypeUtils;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry.FunctionInvocationWrapper;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * A function looked up once from the catalog together with everything the hot path needs to call
+ * it: declared types, a Jackson reader bound to the declared input (or batch item) type, the
+ * writer and, for plain POJO and Flux-to-Flux functions, the unwrapped target so that calls with
+ * an already converted input skip the catalog's conversion layer.
+ * <p>
+ * A pipeline is a chain of such functions fused in-process: each stage's result is handed to the
+ * next as an object and only the last one is serialized. Each stage's calls are timed separately.
+ */
+@Getter
+public class ResolvedFunction {
+    private final FunctionInvocationWrapper wrapper;
+    private final Type inputType;
+    private final Type outputType;
+    private final Class<?> rawInputType;
+    private final Type itemType;
+    private final boolean batch;
+    private final boolean reactive;
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+
+    private final Function<Object, Object> target;
+
+    private final List<Stage> stages;
+
+    @SuppressWarnings("unchecked")
+    public ResolvedFunction(FunctionInvocationWrapper wrapper, ObjectMapper mapper) {
+        this.wrapper = wrapper;
+        this.inputType = wrapper.getInputType();
+        this.outputType = wrapper.getOutputType();
+        this.rawInputType = wrapper.getRawInputType();
+        this.batch = Collection.class.isAssignableFrom(rawInputType);
+        this.reactive = FunctionTypeUtils.isFlux(inputType);
+        this.itemType = itemType(inputType, batch);
+        this.reader = mapper.readerFor(mapper.constructType(itemType));
+        this.writer = mapper.writer();
+
+        boolean plain = wrapper.getTarget() instanceof Function
+                && !wrapper.isInputTypeMessage()
+                && !wrapper.isOutputTypeMessage()
+                && !wrapper.isRoutingFunction()
+                && !wrapper.getFunctionDefinition().contains("|")
+                && !wrapper.getFunctionDefinition().contains(",");
+
+        boolean scalar = !wrapper.isInputTypePublisher() && !wrapper.isOutputTypePublisher();
+        boolean fluxToPublisher = reactive && wrapper.isOutputTypePublisher();
+
+        this.target = plain && (scalar || fluxToPublisher) ? (Function<Object, Object>) wrapper.getTarget() : null;
+        this.stages = Collections.emptyList();
+    }
+
+    public ResolvedFunction(List<Stage> stages, ObjectMapper mapper) {
+        ResolvedFunction first = stages.get(0).getFunction();
+        ResolvedFunction last = stages.get(stages.size() - 1).getFunction();
+
+        for (Stage stage : stages.subList(1, stages.size())) {
+            if (stage.getFunction().isReactive() && !first.isReactive())
+                throw new IllegalStateException("Reactive stage " + stage.getFunction().getDefinition() + " must not follow a non-reactive one");
+        }
+
+        this.wrapper = first.getWrapper();
+        this.inputType = first.getInputType();
+        this.outputType = last.getOutputType();
+        this.rawInputType = first.getRawInputType();
+        this.itemType = first.getItemType();
+        this.batch = first.isBatch();
+        this.reactive = first.isReactive();
+        this.reader = first.getReader();
+        this.writer = mapper.writer();
+        this.target = null;
+        this.stages = stages;
+    }
+
+    public String getDefinition() {
+        if (stages.isEmpty())
+            return wrapper.getFunctionDefinition();
+
+        return stages.stream()
+                .map(stage -> stage.getFunction().getDefinition())
+                .collect(Collectors.joining("|"));
+    }
+
+    public Object apply(Object input) {
+        if (!stages.isEmpty()) {
+            Object value = input;
+            for (Stage stage : stages)
+                value = stage.apply(value);
+            return value;
+        }
+
+        if (target != null && rawInputType.isInstance(input))
+            return target.apply(input);
+
+        return wrapper.apply(input);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Flux<Object> applyFlux(Flux<Object> inputs) {
+        if (!stages.isEmpty()) {
+            Flux<Object> values = inputs;
+            for (Stage stage : stages)
+                values = stage.getFunction().isReactive() ? stage.getFunction().applyFlux(values) : values.map(stage::apply);
+            return values;
+        }
+
+        return Flux.from((Publisher<Object>) apply(inputs));
+    }
+
+    /** Reads a payload encoded with {@code codec} into the declared input (or batch item) type. */
+    public Object read(ByteString bytes, PayloadCodec codec) throws IOException {
+        return codec.read(bytes, itemType);
+    }
+
+    public Object read(JsonNode node) throws IOException {
+        return reader.readValue(node);
+    }
+
+    public byte[] write(Object value) throws IOException {
+        return writer.writeValueAsBytes(value);
+    }
+
+    @Value
+    public static class Stage {
+        ResolvedFunction function;
+        Timer timer;
+
+        Object apply(Object input) {
+            long start = System.nanoTime();
+            try {
+                return function.apply(input);
+            } finally {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static Type itemType(Type inputType, boolean batch) {
+        Type type = FunctionTypeUtils.getGenericType(inputType);
+        if (batch)
+            type = FunctionTypeUtils.getImmediateGenericType(type, 0);
+
+        if (type == null || type instanceof TypeVariable || FunctionTypeUtils.isMessage(type))
+            return Object.class;
+
+        return type;
+    }
+}
@@ -0,0 +1,108 @@
+package io.kettil.fn;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An asynchronous semaphore. {@link #run} subscribes to a piece of work only once one of
+ * {@code size} slots is free, and returns the slot when the work terminates or is cancelled.
+ * Subscribers waiting for a slot hold no thread, and are let through in the order they arrived.
+ */
+class WorkerSlots {
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger free;
+    private final AtomicInteger wip = new AtomicInteger();
+
+    WorkerSlots(int size) {
+        this.free = new AtomicInteger(size);
+    }
+
+    <T> Mono<T> run(Mono<T> work) {
+        return Mono.usingWhen(acquire(), slot -> work, Slot::release, (slot, e) -> slot.release(), Slot::release);
+    }
+
+    <T> Flux<T> run(Flux<T> work) {
+        return Flux.usingWhen(acquire(), slot -> work, Slot::release, (slot, e) -> slot.release(), Slot::release);
+    }
+
+    int available() {
+        return free.get();
+    }
+
+    private Mono<Slot> acquire() {
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(sink);
+            sink.onCancel(waiter::cancel);
+            waiters.add(waiter);
+            drain();
+        });
+    }
+
+    // Serialized: only one thread at a time hands out slots, while any number may return them
+    private void drain() {
+        if (wip.getAndIncrement() != 0)
+            return;
+
+        int missed = 1;
+        do {
+            while (free.get() > 0) {
+                Waiter waiter = waiters.poll();
+                if (waiter == null)
+                    break;
+
+                free.decrementAndGet();
+                if (!waiter.grant())
+                    free.incrementAndGet();
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private class Slot {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Mono<Void> release() {
+            return Mono.fromRunnable(this::free);
+        }
+
+        // Returned at most once, whether by the work terminating or by a cancel racing the grant
+        void free() {
+            if (released.compareAndSet(false, true)) {
+                free.incrementAndGet();
+                drain();
+            }
+        }
+    }
+
+    private class Waiter {
+        private static final int WAITING = 0, GRANTED = 1, CANCELLED = 2;
+
+        private final MonoSink<Slot> sink;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private final Slot slot = new Slot();
+
+        Waiter(MonoSink<Slot> sink) {
+            this.sink = sink;
+        }
+
+        boolean grant() {
+            if (!state.compareAndSet(WAITING, GRANTED))
+                return false;
+
+            sink.success(slot);
+            return true;
+        }
+
+        void cancel() {
+            // Cancelled as the slot was handed over, which usingWhen may then never have seen
+            if (!state.compareAndSet(WAITING, CANCELLED))
+                slot.free();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package io.kettil.fn;
+
+import com.github.bsideup.liiklus.protocol.AckRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import com.google.protobuf.Empty;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AckTrackerTest {
+    private final List<Long> acked = new CopyOnWriteArrayList<>();
+
+    private Server server;
+    private ManagedChannel channel;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+
+        server = InProcessServerBuilder.forName(name)
+                .directExecutor()
+                .addService(new ReactorLiiklusServiceGrpc.LiiklusServiceImplBase() {
+                    @Override
+                    public Mono<Empty> ack(Mono<AckRequest> request) {
+                        return request.map(it -> {
+                            acked.add(it.getOffset());
+                            return Empty.getDefaultInstance();
+                        });
+                    }
+                })
+                .build()
+                .start();
+
+        channel = InProcessChannelBuilder.forName(name)
+                .directExecutor()
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    private AckTracker tracker(int maxCount) {
+        return new AckTracker(
+                ReactorLiiklusServiceGrpc.newReactorStub(channel),
+                AckRequest.newBuilder().setTopic("topic").setGroup("group").setPartition(3).build(),
+                maxCount,
+                Duration.ofHours(1),
+                new SimpleMeterRegistry().counter("errors"));
+    }
+
+    @Test
+    void commitsOnlyOnceEveryEarlierOffsetHasCompleted() {
+        AckTracker acks = tracker(Integer.MAX_VALUE);
+        for (long offset = 10; offset < 14; offset++)
+            acks.received(offset);
+
+        acks.completed(12);
+        acks.completed(11);
+        acks.flush();
+        assertThat(acked).isEmpty();
+
+        acks.completed(10);
+        acks.flush();
+
+        acks.completed(13);
+        acks.close().block(Duration.ofSeconds(5));
+
+        assertThat(acked).containsExactly(12L, 13L);
+    }
+
+    @Test
+    void ignoresOffsetsThatWereNotReceived() {
+        AckTracker acks = tracker(Integer.MAX_VALUE);
+        acks.received(5);
+        acks.received(6);
+
+        acks.completed(4);
+        acks.completed(6);
+        acks.close().block(Duration.ofSeconds(5));
+
+        assertThat(acked).isEmpty();
+    }
+
+    @Test
+    void flushesAfterMaxCountCompletions() {
+        AckTracker acks = tracker(2);
+        for (long offset = 0; offset < 4; offset++)
+            acks.received(offset);
+
+        acks.completed(1);
+        acks.completed(0);
+        assertThat(acked).containsExactly(1L);
+
+        acks.completed(3);
+        assertThat(acked).containsExactly(1L);
+
+        acks.close().block(Duration.ofSeconds(5));
+        assertThat(acked).containsExactly(1L);
+    }
+
+    @Test
+    void commitsNothingAfterClose() {
+        AckTracker acks = tracker(1);
+        acks.received(0);
+        acks.close().block(Duration.ofSeconds(5));
+
+        acks.completed(0);
+        acks.flush();
+
+        assertThat(acked).isEmpty();
+    }
+}
@@ -0,0 +1,93 @@
+package io.kettil.fn;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.ReceiveReply;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import reactor.test.publisher.TestPublisher;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CreditGateTest {
+    private final TestPublisher<ReceiveReply.LiiklusEventRecord> source = TestPublisher.create();
+    private final List<ReceiveReply.LiiklusEventRecord> received = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private CreditGate gate(int credits, DataSize maxBytes) {
+        FnProperties fnProperties = new FnProperties();
+        fnProperties.getFlow().setMaxBytes(maxBytes);
+
+        CreditGate gate = new CreditGate(0, credits, new ByteBudget(fnProperties));
+        gate.gate(source.flux()).subscribe(received::add, null, () -> completed.set(true));
+        return gate;
+    }
+
+    private static ReceiveReply.LiiklusEventRecord record(long offset, int size) {
+        return ReceiveReply.LiiklusEventRecord.newBuilder()
+                .setOffset(offset)
+                .setEvent(LiiklusEvent.newBuilder().setData(ByteString.copyFrom(new byte[size])))
+                .build();
+    }
+
+    @Test
+    void requestsOnlyAsManyRecordsAsItHasCredits() {
+        CreditGate gate = gate(2, DataSize.ofMegabytes(1));
+        source.assertMinRequested(2).assertMaxRequested(2);
+
+        source.next(record(0, 1), record(1, 1));
+        source.assertMaxRequested(0);
+        assertThat(gate.getOutstanding()).isEqualTo(2);
+
+        // The returned credit is spent on requesting the next record straight away
+        gate.release(received.get(0));
+        source.assertMinRequested(1).assertMaxRequested(1);
+        assertThat(gate.getOutstanding()).isEqualTo(2);
+    }
+
+    @Test
+    void stopsRequestingWhileTheByteBudgetIsExhausted() {
+        CreditGate gate = gate(4, DataSize.ofBytes(10));
+
+        source.next(record(0, 6), record(1, 6), record(2, 6));
+        source.assertMaxRequested(1);
+
+        // 12 of 10 bytes still held, so the returned credit is not spent
+        gate.release(received.get(2));
+        source.assertMaxRequested(1);
+
+        gate.release(received.get(1));
+        source.assertMinRequested(3);
+    }
+
+    @Test
+    void drainCompletesOnceEveryPendingRecordIsReleased() {
+        CreditGate gate = gate(4, DataSize.ofMegabytes(1));
+        source.next(record(0, 1), record(1, 1));
+
+        gate.drain();
+        source.assertCancelled();
+        assertThat(completed).isFalse();
+
+        gate.release(received.get(1));
+        assertThat(completed).isFalse();
+
+        gate.release(received.get(0));
+        assertThat(completed).isTrue();
+    }
+
+    @Test
+    void drainCompletesAtOnceWithNothingPending() {
+        CreditGate gate = gate(4, DataSize.ofMegabytes(1));
+
+        gate.drain();
+
+        source.assertCancelled();
+        assertThat(completed).isTrue();
+        assertThat(received).isEmpty();
+    }
+}
@@ -0,0 +1,83 @@
+package io.kettil.fn;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DedupeWindowTest {
+    @Test
+    void remembersAddedOffsetsOnly() {
+        DedupeWindow window = new DedupeWindow(64);
+        window.add(3);
+        window.add(5);
+
+        assertThat(window.contains(3)).isTrue();
+        assertThat(window.contains(4)).isFalse();
+        assertThat(window.contains(5)).isTrue();
+        assertThat(window.contains(6)).isFalse();
+    }
+
+    @Test
+    void roundsTheSizeUpToWholeWords() {
+        DedupeWindow window = new DedupeWindow(10);
+        window.add(0);
+        window.add(63);
+
+        assertThat(window.contains(0)).isTrue();
+        assertThat(window.contains(63)).isTrue();
+    }
+
+    @Test
+    void forgetsOffsetsThatFallOutOfTheWindow() {
+        DedupeWindow window = new DedupeWindow(64);
+        window.add(0);
+        window.add(63);
+        assertThat(window.contains(0)).isTrue();
+
+        window.add(64);
+        assertThat(window.contains(0)).isFalse();
+        assertThat(window.contains(63)).isTrue();
+        assertThat(window.contains(64)).isTrue();
+    }
+
+    @Test
+    void clearsReusedBitsWhenTheRingWrapsAround() {
+        DedupeWindow window = new DedupeWindow(64);
+        for (long offset = 0; offset < 64; offset++)
+            window.add(offset);
+
+        // 70 reuses the bit of 6 and skips over 64 to 69, whose bits still hold 0 to 5
+        window.add(70);
+
+        for (long offset = 64; offset < 70; offset++)
+            assertThat(window.contains(offset)).as("offset %d", offset).isFalse();
+        assertThat(window.contains(70)).isTrue();
+        assertThat(window.contains(7)).isTrue();
+        assertThat(window.contains(6)).isFalse();
+    }
+
+    @Test
+    void clearsEverythingAfterAJumpPastTheWindow() {
+        DedupeWindow window = new DedupeWindow(64);
+        window.add(1);
+        window.add(2);
+
+        window.add(1000);
+
+        assertThat(window.contains(1000)).isTrue();
+        for (long offset = 937; offset < 1000; offset++)
+            assertThat(window.contains(offset)).as("offset %d", offset).isFalse();
+    }
+
+    @Test
+    void acceptsLateOffsetsStillInsideTheWindow() {
+        DedupeWindow window = new DedupeWindow(64);
+        window.add(100);
+        window.add(90);
+
+        assertThat(window.contains(90)).isTrue();
+
+        window.add(36);
+        assertThat(window.contains(36)).isFalse();
+    }
+}
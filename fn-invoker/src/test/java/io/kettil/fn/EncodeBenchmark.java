@@ -0,0 +1,93 @@
+package io.kettil.fn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes allocated per published record when a result is serialized into a fresh array, copied into
+ * a {@link ByteString} and wrapped in events built from scratch, against {@link EventEncoder}
+ * serializing into a pooled buffer that is wrapped without copying. Run with {@code -prof gc} and
+ * compare {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+    private static final String ID = "0123456789abcdef-42";
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private ObjectMapper mapper;
+    private EventEncoder encoder;
+    private Map<String, Object> result;
+
+    @Setup
+    public void setUp() {
+        mapper = new ObjectMapper();
+
+        FnProperties fnProperties = new FnProperties();
+        fnProperties.setInTopic("in");
+        fnProperties.setOutTopic("out");
+
+        DefaultListableBeanFactory beans = new DefaultListableBeanFactory();
+        PayloadCodecs codecs = new PayloadCodecs(fnProperties, mapper, Jackson2ObjectMapperBuilder.json(), beans.getBeanProvider(PayloadCodec.class));
+        encoder = new EventEncoder(fnProperties, beans.getBeanProvider(KeyExtractor.class), codecs);
+
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size)
+            text.append("derp ");
+
+        result = new LinkedHashMap<>();
+        result.put("id", 42);
+        result.put("text", text.substring(0, size));
+    }
+
+    @Benchmark
+    public PublishRequest copying() throws IOException {
+        return PublishRequest.newBuilder()
+                .setTopic("out")
+                .setKey(ByteString.copyFromUtf8(ID))
+                .setLiiklusEvent(LiiklusEvent.newBuilder()
+                        .setId(ID)
+                        .setType("io.kettil.fn.event")
+                        .setSource("/example")
+                        .setDataContentType("application/json")
+                        .setData(ByteString.copyFrom(mapper.writeValueAsBytes(result))))
+                .build();
+    }
+
+    @Benchmark
+    public void pooled(Blackhole blackhole) throws IOException {
+        EncodedEvent event = encoder.encode(result, null, ID);
+        try {
+            blackhole.consume(event.getRequest());
+        } finally {
+            event.release();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package io.kettil.fn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.cloud.function.context.FunctionProperties;
+import org.springframework.cloud.function.context.FunctionRegistration;
+import org.springframework.cloud.function.context.catalog.FunctionTypeUtils;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
+import org.springframework.cloud.function.json.JacksonMapper;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+
+import java.util.Collections;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FnCacheTest {
+    private final FnProperties fnProperties = new FnProperties();
+    private final FunctionProperties functionProperties = new FunctionProperties();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private AnnotationConfigApplicationContext context;
+
+    @BeforeEach
+    void setUp() {
+        fnProperties.getCache().setEnabled(true);
+        functionProperties.setDefinition("plusOne");
+
+        SimpleFunctionRegistry catalog = new SimpleFunctionRegistry(
+                new DefaultConversionService(),
+                new CompositeMessageConverter(Collections.singletonList(new MappingJackson2MessageConverter())),
+                new JacksonMapper(mapper));
+        register(catalog, "plusOne", new PlusOne());
+        register(catalog, "plusTen", new PlusTen());
+
+        context = new AnnotationConfigApplicationContext();
+        context.registerBean(FnProperties.class, () -> fnProperties);
+        context.registerBean(FunctionProperties.class, () -> functionProperties);
+        context.registerBean(ObjectMapper.class, () -> mapper);
+        context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+        context.registerBean(SimpleFunctionRegistry.class, () -> catalog);
+        context.registerBean(FnMetrics.class);
+        context.registerBean(PayloadCodecs.class, () -> new PayloadCodecs(fnProperties, mapper, Jackson2ObjectMapperBuilder.json(), new DefaultListableBeanFactory().getBeanProvider(PayloadCodec.class)));
+        context.registerBean(FnRegistry.class, () -> new FnRegistry(catalog, functionProperties, mapper, context.getBean(MeterRegistry.class), "", context));
+        context.registerBean(FnCache.class);
+        context.refresh();
+    }
+
+    @AfterEach
+    void tearDown() {
+        context.close();
+    }
+
+    @Test
+    void doesNotAnswerARefreshedFunctionFromTheCache() throws Exception {
+        FnRegistry registry = context.getBean(FnRegistry.class);
+        FnCache cache = context.getBean(FnCache.class);
+        PayloadCodec json = context.getBean(PayloadCodecs.class).getDefault();
+
+        assertThat(cache.apply(registry.getFunction(), ByteString.copyFromUtf8("1"), json).getValue()).isEqualTo(2);
+
+        functionProperties.setDefinition("plusTen");
+        registry.refresh();
+
+        assertThat(cache.apply(registry.getFunction(), ByteString.copyFromUtf8("1"), json).getValue()).isEqualTo(11);
+    }
+
+    private static void register(SimpleFunctionRegistry catalog, String name, Function<Integer, Integer> function) {
+        catalog.register(new FunctionRegistration<>(function, name)
+                .type(FunctionTypeUtils.discoverFunctionTypeFromClass(function.getClass())));
+    }
+
+    public static class PlusOne implements Function<Integer, Integer> {
+        @Override
+        public Integer apply(Integer value) {
+            return value + 1;
+        }
+    }
+
+    public static class PlusTen implements Function<Integer, Integer> {
+        @Override
+        public Integer apply(Integer value) {
+            return value + 10;
+        }
+    }
+}
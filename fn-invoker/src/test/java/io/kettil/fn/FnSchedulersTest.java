@@ -0,0 +1,101 @@
+package io.kettil.fn;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FnSchedulersTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private FnSchedulers schedulers;
+    private Scheduler pool;
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        FnProperties fnProperties = new FnProperties();
+        fnProperties.getExecution().setMode(FnProperties.ExecutionMode.POOL);
+        fnProperties.getExecution().setThreads(1);
+        fnProperties.getExecution().setQueueSize(1);
+
+        schedulers = new FnSchedulers(fnProperties, new SimpleMeterRegistry());
+        pool = schedulers.forPartition(0);
+
+        // Occupy the only worker and the only queue slot
+        CountDownLatch started = new CountDownLatch(1);
+        schedulers.runOn(pool, Mono.fromRunnable(() -> {
+            started.countDown();
+            await(release);
+        })).subscribe();
+        schedulers.runOn(pool, Mono.empty()).subscribe();
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        schedulers.destroy();
+    }
+
+    @Test
+    void waitsForAFreeSlotInsteadOfRunningOnTheSubmittingThread() throws Exception {
+        AtomicReference<Thread> ranOn = new AtomicReference<>();
+        CompletableFuture<Void> done = schedulers.runOn(pool, Mono.<Void>fromRunnable(() -> ranOn.set(Thread.currentThread()))).toFuture();
+
+        Thread.sleep(100);
+        assertThat(ranOn.get()).isNull();
+        assertThat(done).isNotDone();
+
+        release.countDown();
+        done.get(5, TimeUnit.SECONDS);
+
+        assertThat(ranOn.get()).isNotSameAs(Thread.currentThread());
+        assertThat(ranOn.get().getName()).startsWith("fn-worker-");
+    }
+
+    @Test
+    void givesBackTheSlotOfACancelledWaiter() throws Exception {
+        AtomicBoolean ran = new AtomicBoolean();
+        schedulers.runOn(pool, Mono.fromRunnable(() -> ran.set(true))).subscribe().dispose();
+
+        release.countDown();
+        String thread = schedulers.runOn(pool, Mono.fromCallable(() -> Thread.currentThread().getName()))
+                .block(Duration.ofSeconds(5));
+
+        assertThat(thread).startsWith("fn-worker-");
+        assertThat(ran).isFalse();
+    }
+
+    @Test
+    void movesUngatedOverflowToBoundedElastic() {
+        // Take the queue's room for handing over between gated calls too
+        pool.schedule(() -> {
+        });
+
+        String thread = Mono.fromCallable(() -> Thread.currentThread().getName())
+                .subscribeOn(pool)
+                .block(Duration.ofSeconds(5));
+
+        assertThat(thread).startsWith("boundedElastic");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.kettil.fn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.PublishReply;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import com.github.bsideup.liiklus.protocol.ReceiveReply;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.cloud.function.context.FunctionRegistration;
+import org.springframework.cloud.function.context.catalog.FunctionTypeUtils;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
+import org.springframework.cloud.function.json.JacksonMapper;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FnStreamingControllerTest {
+    // Data of published events, copied: in-process calls pass the request itself, whose data is a
+    // pooled buffer reused once the publish completes
+    private final List<String> published = new CopyOnWriteArrayList<>();
+
+    private Server server;
+    private ManagedChannel channel;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+
+        server = InProcessServerBuilder.forName(name)
+                .directExecutor()
+                .addService(new ReactorLiiklusServiceGrpc.LiiklusServiceImplBase() {
+                    @Override
+                    public Mono<PublishReply> publish(Mono<PublishRequest> request) {
+                        return request.map(it -> {
+                            published.add(it.getLiiklusEvent().getData().toStringUtf8());
+                            return PublishReply.getDefaultInstance();
+                        });
+                    }
+                })
+                .build()
+                .start();
+
+        channel = InProcessChannelBuilder.forName(name)
+                .directExecutor()
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    @Test
+    void batchesSurviveASlowConsumerWithAShortLinger() {
+        List<Integer> processed = FnStreamingController
+                .batch(Flux.range(0, 200).delayElements(Duration.ofMillis(3)), 8, Duration.ofMillis(1))
+                .flatMapSequential(batch -> Mono.delay(Duration.ofMillis(5)).thenReturn(batch), 1)
+                .flatMapIterable(batch -> batch)
+                .collectList()
+                .block(Duration.ofSeconds(30));
+
+        assertThat(processed).isEqualTo(IntStream.range(0, 200).boxed().collect(Collectors.toList()));
+    }
+
+    @Test
+    void callsABatchFunctionWithAListWhenBatchSizeIsOne() throws Exception {
+        FnProperties fnProperties = new FnProperties();
+        fnProperties.setInTopic("in");
+        fnProperties.setOutTopic("out");
+        fnProperties.getBatch().setSize(1);
+        fnProperties.getCache().setEnabled(true);
+
+        FnStreamingController controller = controller(fnProperties, new Sizes());
+
+        List<ReceiveReply.LiiklusEventRecord> completed = processRecords(controller, record(0, "3"), record(1, "4"));
+
+        assertThat(completed).extracting(ReceiveReply.LiiklusEventRecord::getOffset).containsExactly(0L, 1L);
+        assertThat(published).containsExactly("\"3 of 1\"", "\"4 of 1\"");
+    }
+
+    private FnStreamingController controller(FnProperties fnProperties, Function<?, ?> function) throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+
+        SimpleFunctionRegistry catalog = new SimpleFunctionRegistry(
+                new DefaultConversionService(),
+                new CompositeMessageConverter(Collections.singletonList(new MappingJackson2MessageConverter())),
+                new JacksonMapper(mapper));
+        catalog.register(new FunctionRegistration<>(function, "fn")
+                .type(FunctionTypeUtils.discoverFunctionTypeFromClass(function.getClass())));
+
+        FnRegistry registry = mock(FnRegistry.class);
+        SimpleFunctionRegistry.FunctionInvocationWrapper wrapper = catalog.lookup("fn");
+        ResolvedFunction fn = new ResolvedFunction(wrapper, mapper);
+        when(registry.getFunction()).thenReturn(fn);
+
+        PayloadCodecs codecs = new PayloadCodecs(fnProperties, mapper, Jackson2ObjectMapperBuilder.json(), beanFactory.getBeanProvider(PayloadCodec.class));
+        FnMetrics metrics = new FnMetrics(meterRegistry);
+
+        FnStreamingController controller = new FnStreamingController();
+        ReflectionTestUtils.setField(controller, "fnProperties", fnProperties);
+        ReflectionTestUtils.setField(controller, "registry", registry);
+        ReflectionTestUtils.setField(controller, "encoder", new EventEncoder(fnProperties, beanFactory.getBeanProvider(KeyExtractor.class), codecs));
+        ReflectionTestUtils.setField(controller, "schedulers", new FnSchedulers(fnProperties, meterRegistry));
+        ReflectionTestUtils.setField(controller, "metrics", metrics);
+        ReflectionTestUtils.setField(controller, "cache", new FnCache(fnProperties, metrics, codecs, meterRegistry));
+        ReflectionTestUtils.setField(controller, "codecs", codecs);
+        ReflectionTestUtils.setField(controller, "retry", ReflectionTestUtils.invokeMethod(controller, "retrySpec"));
+        return controller;
+    }
+
+    private List<ReceiveReply.LiiklusEventRecord> processRecords(FnStreamingController controller, ReceiveReply.LiiklusEventRecord... records) {
+        Flux<ReceiveReply.LiiklusEventRecord> completed = ReflectionTestUtils.invokeMethod(
+                controller,
+                "processRecords",
+                ReactorLiiklusServiceGrpc.newReactorStub(channel),
+                0,
+                Flux.just(records),
+                Schedulers.immediate());
+
+        return completed.collectList().block(Duration.ofSeconds(10));
+    }
+
+    private static ReceiveReply.LiiklusEventRecord record(long offset, String data) {
+        return ReceiveReply.LiiklusEventRecord.newBuilder()
+                .setOffset(offset)
+                .setEvent(LiiklusEvent.newBuilder()
+                        .setDataContentType(PayloadCodecs.JSON)
+                        .setData(ByteString.copyFrom(data, StandardCharsets.UTF_8)))
+                .build();
+    }
+
+    public static class Sizes implements Function<List<Integer>, List<String>> {
+        @Override
+        public List<String> apply(List<Integer> values) {
+            return values.stream()
+                    .map(value -> value + " of " + values.size())
+                    .collect(Collectors.toList());
+        }
+    }
+}
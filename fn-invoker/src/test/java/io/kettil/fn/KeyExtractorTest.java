@@ -0,0 +1,80 @@
+package io.kettil.fn;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.ValidatorFactory;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KeyExtractorTest {
+    private static final ByteString INPUT_KEY = ByteString.copyFromUtf8("input");
+
+    @Test
+    void inputModeKeepsTheInputKey() {
+        KeyExtractor keys = KeyExtractor.of(props(FnProperties.KeyMode.INPUT, null));
+
+        assertThat(keys.extract(INPUT_KEY, "result")).isEqualTo(INPUT_KEY);
+        assertThat(keys.extract(ByteString.EMPTY, "result")).isNull();
+        assertThat(keys.extract(null, "result")).isNull();
+    }
+
+    @Test
+    void idModeNeverDerivesAKey() {
+        assertThat(KeyExtractor.of(props(FnProperties.KeyMode.ID, null)).extract(INPUT_KEY, "result")).isNull();
+    }
+
+    @Test
+    void fieldModeReadsMapEntriesAndBeanProperties() {
+        KeyExtractor keys = KeyExtractor.of(props(FnProperties.KeyMode.FIELD, "customer"));
+
+        assertThat(keys.extract(INPUT_KEY, Collections.singletonMap("customer", 42))).isEqualTo(ByteString.copyFromUtf8("42"));
+        assertThat(keys.extract(INPUT_KEY, new Order("c-1"))).isEqualTo(ByteString.copyFromUtf8("c-1"));
+        assertThat(keys.extract(INPUT_KEY, new Order("c-2"))).isEqualTo(ByteString.copyFromUtf8("c-2"));
+    }
+
+    @Test
+    void fieldModeYieldsNoKeyWhenThePropertyIsMissingOrNull() {
+        KeyExtractor keys = KeyExtractor.of(props(FnProperties.KeyMode.FIELD, "customer"));
+
+        assertThat(keys.extract(INPUT_KEY, null)).isNull();
+        assertThat(keys.extract(INPUT_KEY, "no such property")).isNull();
+        assertThat(keys.extract(INPUT_KEY, new Order(null))).isNull();
+        assertThat(keys.extract(INPUT_KEY, Collections.emptyMap())).isNull();
+    }
+
+    @Test
+    void fieldModeWithoutAFieldIsRejected() {
+        FnProperties.KeyProps props = props(FnProperties.KeyMode.FIELD, null);
+
+        try (ValidatorFactory factory = Validation.buildDefaultValidatorFactory()) {
+            assertThat(factory.getValidator().validate(props))
+                    .extracting(ConstraintViolation::getMessage)
+                    .containsExactly("fn.key.field must be set when fn.key.mode is FIELD");
+        }
+        assertThatThrownBy(() -> KeyExtractor.of(props)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static FnProperties.KeyProps props(FnProperties.KeyMode mode, String field) {
+        FnProperties.KeyProps props = new FnProperties.KeyProps();
+        props.setMode(mode);
+        props.setField(field);
+        return props;
+    }
+
+    private static class Order {
+        private final String customer;
+
+        Order(String customer) {
+            this.customer = customer;
+        }
+
+        public String getCustomer() {
+            return customer;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package io.kettil.fn;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LagMonitorTest {
+    @Test
+    void countsEveryRecordOfAPartitionNeverCommitted() {
+        assertThat(LagMonitor.lag(null, 0)).isZero();
+        assertThat(LagMonitor.lag(null, 1)).isEqualTo(1);
+        assertThat(LagMonitor.lag(null, 10)).isEqualTo(10);
+    }
+
+    @Test
+    void countsTheRecordsAfterTheCommittedOffset() {
+        assertThat(LagMonitor.lag(0L, 1)).isZero();
+        assertThat(LagMonitor.lag(4L, 10)).isEqualTo(5);
+        assertThat(LagMonitor.lag(9L, 10)).isZero();
+    }
+}
@@ -0,0 +1,87 @@
+package io.kettil.fn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.function.context.FunctionRegistration;
+import org.springframework.cloud.function.context.catalog.FunctionTypeUtils;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry;
+import org.springframework.cloud.function.context.catalog.SimpleFunctionRegistry.FunctionInvocationWrapper;
+import org.springframework.cloud.function.json.JacksonMapper;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Per-call cost of invoking a function the way the controllers used to, looking it up in the catalog
+ * and letting the catalog convert the decoded body, against calling a {@link ResolvedFunction}
+ * resolved once, which reads the payload straight into the declared input type with the record's
+ * codec, as the streaming controller does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolveBenchmark {
+    private static final String DEFINITION = "binary";
+
+    private ObjectMapper mapper;
+    private SimpleFunctionRegistry catalog;
+    private ResolvedFunction resolved;
+    private PayloadCodec json;
+    private byte[] payload;
+    private ByteString payloadBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        mapper = new ObjectMapper();
+
+        catalog = new SimpleFunctionRegistry(
+                new DefaultConversionService(),
+                new CompositeMessageConverter(Collections.singletonList(new MappingJackson2MessageConverter())),
+                new JacksonMapper(mapper));
+        catalog.register(new FunctionRegistration<>(new Binary(), DEFINITION)
+                .type(FunctionTypeUtils.discoverFunctionTypeFromClass(Binary.class)));
+
+        FunctionInvocationWrapper wrapper = catalog.lookup(DEFINITION);
+        resolved = new ResolvedFunction(wrapper, mapper);
+        json = new JacksonCodec(PayloadCodecs.JSON, mapper);
+
+        payload = mapper.writeValueAsBytes(33);
+        payloadBytes = ByteString.copyFrom(payload);
+    }
+
+    @Benchmark
+    public Object lookupPerCall() throws IOException {
+        Function<Object, Object> function = catalog.lookup(DEFINITION);
+        return function.apply(mapper.readValue(payload, Object.class));
+    }
+
+    @Benchmark
+    public Object resolvedOnce() throws IOException {
+        return resolved.apply(resolved.read(payloadBytes, json));
+    }
+
+    public static class Binary implements Function<Integer, String> {
+        @Override
+        public String apply(Integer value) {
+            return Integer.toBinaryString(value);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package io.kettil.fn;
+
+import com.github.bsideup.liiklus.protocol.AckRequest;
+import com.github.bsideup.liiklus.protocol.Assignment;
+import com.github.bsideup.liiklus.protocol.GetEndOffsetsReply;
+import com.github.bsideup.liiklus.protocol.GetEndOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.GetOffsetsReply;
+import com.github.bsideup.liiklus.protocol.GetOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.PublishReply;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import com.github.bsideup.liiklus.protocol.ReceiveReply;
+import com.github.bsideup.liiklus.protocol.ReceiveRequest;
+import com.github.bsideup.liiklus.protocol.SubscribeReply;
+import com.github.bsideup.liiklus.protocol.SubscribeRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from launching an invoker JVM to its first published output, with the function deployer
+ * against the {@code fast} profile's direct function loading. Each run starts a fresh JVM against a
+ * stub Liiklus that assigns one partition holding one record, so the time covers class loading,
+ * both application contexts where there are two, resolving the function and the first call.
+ *
+ * <pre>
+ * mvn -Pbench test-compile exec:exec -Dbench.main=io.kettil.fn.StartupBenchmark \
+ *     -Dbench.args="../functions/derp/target/derp-1.0-SNAPSHOT.jar io.kettil.Derp 5"
+ * </pre>
+ *
+ * Arguments after the run count are JVM options for the invoker, such as {@code -XX:SharedArchiveFile}.
+ */
+public class StartupBenchmark {
+    private static final long TIMEOUT_SECONDS = 120;
+
+    public static void main(String[] args) throws Exception {
+        String location = args.length > 0 ? args[0] : "../functions/derp/target/derp-1.0-SNAPSHOT.jar";
+        String name = args.length > 1 ? args[1] : "io.kettil.Derp";
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        List<String> jvmOptions = args.length > 3 ? Arrays.asList(args).subList(3, args.length) : Collections.emptyList();
+
+        if (!Files.isRegularFile(Paths.get(location)))
+            throw new IllegalArgumentException("No function jar at " + location + ", build it first");
+
+        for (String profile : Arrays.asList("default", "fast")) {
+            long[] millis = new long[runs];
+            for (int i = 0; i < runs; i++)
+                millis[i] = run(location, name, profile, jvmOptions);
+
+            Arrays.sort(millis);
+            System.out.printf("%-8s runs=%d min=%dms median=%dms max=%dms%n",
+                    profile, runs, millis[0], millis[runs / 2], millis[runs - 1]);
+        }
+    }
+
+    private static long run(String location, String name, String profile, List<String> jvmOptions) throws Exception {
+        CompletableFuture<Long> published = new CompletableFuture<>();
+
+        Server server = NettyServerBuilder.forPort(0)
+                .addService(new StubLiiklus(published))
+                .build()
+                .start();
+
+        Path log = Files.createTempFile("startup-" + profile, ".log");
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.addAll(Arrays.asList(
+                "-cp", System.getProperty("java.class.path"),
+                FnInvokerApplication.class.getName(),
+                "--fn.location=" + new File(location).getAbsolutePath(),
+                "--fn.name=" + name,
+                "--fn.in-topic=in",
+                "--fn.in-group=startup",
+                "--fn.out-topic=out",
+                "--fn.grpc.enabled=false",
+                "--liiklus.host=localhost",
+                "--liiklus.port=" + server.getPort(),
+                "--server.port=0"));
+        if (!profile.equals("default"))
+            command.add("--spring.profiles.active=" + profile);
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(published.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) - start);
+        } catch (Exception e) {
+            throw new IllegalStateException("No output published by the " + profile + " invoker, see " + log, e);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS))
+                process.destroyForcibly();
+            server.shutdownNow();
+        }
+    }
+
+    /** Assigns partition 0 of the input topic, holding a single record, and times the first publish. */
+    private static class StubLiiklus extends ReactorLiiklusServiceGrpc.LiiklusServiceImplBase {
+        private final CompletableFuture<Long> published;
+
+        StubLiiklus(CompletableFuture<Long> published) {
+            this.published = published;
+        }
+
+        @Override
+        public Flux<SubscribeReply> subscribe(Mono<SubscribeRequest> request) {
+            return request
+                    .map(it -> SubscribeReply.newBuilder()
+                            .setAssignment(Assignment.newBuilder().setSessionId("startup").setPartition(0))
+                            .build())
+                    .concatWith(Flux.never());
+        }
+
+        @Override
+        public Flux<ReceiveReply> receive(Mono<ReceiveRequest> request) {
+            return request
+                    .map(it -> ReceiveReply.newBuilder()
+                            .setLiiklusEventRecord(ReceiveReply.LiiklusEventRecord.newBuilder()
+                                    .setOffset(0)
+                                    .setEvent(LiiklusEvent.newBuilder()
+                                            .setId("startup-0")
+                                            .setType("io.kettil.fn.event")
+                                            .setSource("/startup")
+                                            .setDataContentType("application/json")
+                                            .setData(ByteString.copyFrom("33", StandardCharsets.UTF_8))))
+                            .build())
+                    .concatWith(Flux.never());
+        }
+
+        @Override
+        public Mono<PublishReply> publish(Mono<PublishRequest> request) {
+            return request.map(it -> {
+                published.complete(System.nanoTime());
+                return PublishReply.newBuilder().setTopic(it.getTopic()).build();
+            });
+        }
+
+        @Override
+        public Mono<Empty> ack(Mono<AckRequest> request) {
+            return request.map(it -> Empty.getDefaultInstance());
+        }
+
+        @Override
+        public Mono<GetOffsetsReply> getOffsets(Mono<GetOffsetsRequest> request) {
+            return request.map(it -> GetOffsetsReply.newBuilder().build());
+        }
+
+        @Override
+        public Mono<GetEndOffsetsReply> getEndOffsets(Mono<GetEndOffsetsRequest> request) {
+            return request.map(it -> GetEndOffsetsReply.newBuilder().putOffsets(0, 1).build());
+        }
+    }
+}
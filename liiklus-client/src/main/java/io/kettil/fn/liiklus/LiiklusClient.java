@@ -0,0 +1,117 @@
+package io.kettil.fn.liiklus;
+
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * A pool of channels to one or more Liiklus nodes, several per node so that streams are spread over
+ * more than one HTTP/2 connection. Stateless calls (publish, ack, offsets) are balanced over every
+ * channel. A subscription only exists on the node that created it, so a {@link Session} keeps the
+ * subscribe call and the receives for its assignments on one node, spread over that node's channels.
+ */
+@Slf4j
+public class LiiklusClient {
+    @Data
+    public static class Options {
+        private int channels = 2;
+        private int flowControlWindow = 1024 * 1024;
+        private Duration keepAliveTime = Duration.ofSeconds(30);
+        private Duration keepAliveTimeout = Duration.ofSeconds(10);
+        private int maxInboundMessageSize = 16 * 1024 * 1024;
+    }
+
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<List<ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub>> nodes = new ArrayList<>();
+    private final List<ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub> stubs = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    public LiiklusClient(List<String> targets, Options options) {
+        if (targets.isEmpty())
+            throw new IllegalArgumentException("No Liiklus endpoints");
+        if (options.getChannels() < 1)
+            throw new IllegalArgumentException("At least one channel per Liiklus endpoint is required, got " + options.getChannels());
+
+        for (String target : targets) {
+            List<ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub> node = new ArrayList<>(options.getChannels());
+
+            for (int i = 0; i < options.getChannels(); i++) {
+                ManagedChannel channel = NettyChannelBuilder.forTarget(target)
+                        .directExecutor()
+                        .usePlaintext()
+                        .flowControlWindow(options.getFlowControlWindow())
+                        .keepAliveTime(options.getKeepAliveTime().toMillis(), TimeUnit.MILLISECONDS)
+                        .keepAliveTimeout(options.getKeepAliveTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                        .keepAliveWithoutCalls(true)
+                        .maxInboundMessageSize(options.getMaxInboundMessageSize())
+                        .build();
+
+                channels.add(channel);
+                node.add(ReactorLiiklusServiceGrpc.newReactorStub(channel));
+            }
+
+            nodes.add(node);
+            stubs.addAll(node);
+        }
+
+        log.info("opened {} channels to {}", channels.size(), targets);
+    }
+
+    /**
+     * Splits a comma separated list of {@code host:port} endpoints.
+     */
+    public static List<String> targets(String endpoints) {
+        return Arrays.stream(endpoints.split(","))
+                .map(String::trim)
+                .filter(target -> !target.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    public ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub() {
+        return stubs.get(Math.floorMod(next.getAndIncrement(), stubs.size()));
+    }
+
+    public Session session() {
+        return new Session(nodes.get(Math.floorMod(next.getAndIncrement(), nodes.size())));
+    }
+
+    public void shutdown(Duration timeout) {
+        channels.forEach(ManagedChannel::shutdown);
+
+        try {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            for (ManagedChannel channel : channels)
+                channel.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channels.forEach(ManagedChannel::shutdownNow);
+        }
+    }
+
+    public static class Session {
+        private final List<ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub> stubs;
+
+        private Session(List<ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub> stubs) {
+            this.stubs = stubs;
+        }
+
+        public ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub() {
+            return stubs.get(0);
+        }
+
+        public ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub(int partition) {
+            return stubs.get(Math.floorMod(partition, stubs.size()));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.kettil.fn.liiklus;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LiiklusClientTest {
+    @Test
+    void rejectsFewerThanOneChannel() {
+        LiiklusClient.Options options = new LiiklusClient.Options();
+        options.setChannels(0);
+
+        assertThatThrownBy(() -> new LiiklusClient(Collections.singletonList("localhost:6565"), options))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void rejectsNoEndpoints() {
+        assertThatThrownBy(() -> new LiiklusClient(Collections.emptyList(), new LiiklusClient.Options()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void keepsASessionOnOneNode() {
+        LiiklusClient.Options options = new LiiklusClient.Options();
+        options.setChannels(3);
+
+        LiiklusClient client = new LiiklusClient(Arrays.asList("a:6565", "b:6565"), options);
+        try {
+            LiiklusClient.Session session = client.session();
+
+            assertThat(session.stub(0)).isSameAs(session.stub());
+            assertThat(session.stub(3)).isSameAs(session.stub(0));
+            assertThat(session.stub(1)).isNotSameAs(session.stub(0));
+        } finally {
+            client.shutdown(Duration.ZERO);
+        }
+    }
+
+    @Test
+    void splitsEndpoints() {
+        assertThat(LiiklusClient.targets(" a:1, b:2 ,,")).containsExactly("a:1", "b:2");
+    }
+}
@@ -0,0 +1,42 @@
+package io.kettil.fn.liiklus;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.util.Locale;
+
+/** Jackson mappers for the event data content types the invoker also understands. */
+final class PayloadFormats {
+    static final String JSON = "application/json";
+    static final String SMILE = "application/x-jackson-smile";
+    static final String CBOR = "application/cbor";
+
+    private PayloadFormats() {
+    }
+
+    /** A mapper for {@code contentType}, JSON when it is empty, or {@code null} if it is not Jackson's. */
+    static ObjectMapper mapper(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        switch ((semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT)) {
+            case "":
+            case JSON:
+                return mapper(new JsonFactory());
+            case SMILE:
+                return mapper(new SmileFactory());
+            case CBOR:
+                return mapper(new CBORFactory());
+            default:
+                return null;
+        }
+    }
+
+    private static ObjectMapper mapper(JsonFactory factory) {
+        return new ObjectMapper(factory)
+                .registerModule(new Jdk8Module())
+                .registerModule(new JavaTimeModule());
+    }
+}
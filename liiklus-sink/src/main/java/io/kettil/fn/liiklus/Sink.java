@@ -1,19 +1,21 @@
 package io.kettil.fn.liiklus;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.github.bsideup.liiklus.protocol.*;
-import io.grpc.ManagedChannel;
-import io.grpc.netty.NettyChannelBuilder;
 import lombok.Data;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import picocli.CommandLine;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Data
@@ -29,15 +31,41 @@ public class Sink implements Runnable {
     @CommandLine.Option(names = {"--port"}, description = "liiklus port", defaultValue = "6565")
     private int liiklusPort;
 
+    @CommandLine.Option(names = {"--endpoints"}, description = "comma separated liiklus host:port endpoints; overrides host and port")
+    private String endpoints;
+
+    @CommandLine.Option(names = {"--channels"}, description = "channels per liiklus endpoint", defaultValue = "2")
+    private int channels;
+
+    @CommandLine.Option(names = {"--flowControlWindow"}, description = "HTTP/2 flow-control window per stream in bytes", defaultValue = "1048576")
+    private int flowControlWindow;
+
+    @CommandLine.Option(names = {"--keepAliveTime"}, description = "Delay between keepalive pings in milliseconds", defaultValue = "30000")
+    private long keepAliveTime;
+
+    @CommandLine.Option(names = {"--keepAliveTimeout"}, description = "Longest wait for a keepalive ack in milliseconds", defaultValue = "10000")
+    private long keepAliveTimeout;
+
+    @CommandLine.Option(names = {"--maxInboundMessageSize"}, description = "Largest message accepted from liiklus in bytes", defaultValue = "16777216")
+    private int maxInboundMessageSize;
+
+    @CommandLine.Option(names = {"--ackCount"}, description = "Completed records between offset commits", defaultValue = "500")
+    private int ackCount;
+
+    @CommandLine.Option(names = {"--ackInterval"}, description = "Longest delay between offset commits in milliseconds", defaultValue = "1000")
+    private long ackInterval;
+
+    @CommandLine.Option(names = {"--drainTimeout"}, description = "Longest wait for in-flight records on shutdown in milliseconds", defaultValue = "10000")
+    private long drainTimeout;
+
     @CommandLine.Parameters(paramLabel = "TOPIC", description = "liiklus topic", defaultValue = "fn-input-topic")
     String topic;
 
     @CommandLine.Parameters(paramLabel = "GROUP", description = "liiklus group", defaultValue = "fn-input-group")
     String group;
 
-    private ObjectMapper mapper = new ObjectMapper()
-            .registerModule(new Jdk8Module())
-            .registerModule(new JavaTimeModule());
+    // Mappers by data content type; null for content types that are printed as a byte count
+    private final Map<String, Optional<ObjectMapper>> mappers = new ConcurrentHashMap<>();
 
     public static void main(String[] args) {
         new CommandLine(new Sink()).execute(args);
@@ -45,34 +73,48 @@ public class Sink implements Runnable {
 
     private final CountDownLatch latch = new CountDownLatch(1);
 
+    private final Map<Integer, AckTracker> ackTrackers = new ConcurrentHashMap<>();
+
+    private final Map<Integer, Mono<Void>> drains = new ConcurrentHashMap<>();
+
     @SneakyThrows
     public void run() {
-        ManagedChannel channel = NettyChannelBuilder.forTarget(liiklusHost + ":" + liiklusPort)
-                .directExecutor()
-                .usePlaintext()
-                .build();
+        LiiklusClient.Options options = new LiiklusClient.Options();
+        options.setChannels(channels);
+        options.setFlowControlWindow(flowControlWindow);
+        options.setKeepAliveTime(Duration.ofMillis(keepAliveTime));
+        options.setKeepAliveTimeout(Duration.ofMillis(keepAliveTimeout));
+        options.setMaxInboundMessageSize(maxInboundMessageSize);
+
+        LiiklusClient client = new LiiklusClient(
+                LiiklusClient.targets(endpoints != null ? endpoints : liiklusHost + ":" + liiklusPort),
+                options);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             log.info("shutting down");
 
-            channel.shutdown();
-
+            // Stop receiving, let the records already received complete, then commit
             try {
-                channel.awaitTermination(1000, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                // Already in shutdown hook--don't call Thread.currentThread().interrupt()
-            } finally {
-                channel.shutdownNow();
+                Flux.fromIterable(drains.values())
+                        .flatMap(drain -> drain)
+                        .then()
+                        .block(Duration.ofMillis(drainTimeout));
+            } catch (IllegalStateException e) {
+                log.warn("Partitions did not drain within {} ms", drainTimeout);
             }
 
-            latch.countDown();
-        }));
+            Flux.fromIterable(ackTrackers.values())
+                    .flatMap(AckTracker::close)
+                    .then()
+                    .block(Duration.ofMillis(1000));
 
-        log.info("opened channel");
+            client.shutdown(Duration.ofMillis(1000));
 
-        ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub = ReactorLiiklusServiceGrpc.newReactorStub(channel);
+            latch.countDown();
+        }));
 
-        log.info("created service stub");
+        // Acks may use any channel, but receiving must stay on the node that holds the subscription
+        LiiklusClient.Session session = client.session();
 
         SubscribeRequest inSubscribeRequest = SubscribeRequest.newBuilder()
                 .setTopic(topic)
@@ -80,34 +122,55 @@ public class Sink implements Runnable {
                 .setAutoOffsetReset(SubscribeRequest.AutoOffsetReset.LATEST)
                 .build();
 
-        stub.subscribe(inSubscribeRequest)
+        session.stub().subscribe(inSubscribeRequest)
                 .filter(it -> it.getReplyCase() == SubscribeReply.ReplyCase.ASSIGNMENT)
                 .map(SubscribeReply::getAssignment)
                 .doOnNext(assignment -> log.info("Assigned to partition {}", assignment.getPartition()))
-                .flatMap(assignment -> stub
-                        .receive(ReceiveRequest.newBuilder().setAssignment(assignment).setFormat(ReceiveRequest.ContentFormat.LIIKLUS_EVENT).build())
-                        .map(ReceiveReply::getLiiklusEventRecord)
-                        .doOnNext(record -> {
-                            try {
-                                Object value = mapper.readValue(record.getEvent().getData().toByteArray(), Object.class);
-                                System.out.println(value);
-
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            } finally {
-                                log.debug("ACKing partition {} offset {}", assignment.getPartition(), record.getOffset());
-                                stub.ack(
-                                        AckRequest.newBuilder()
-                                                .setTopic(inSubscribeRequest.getTopic())
-                                                .setGroup(inSubscribeRequest.getGroup())
-                                                .setGroupVersion(inSubscribeRequest.getGroupVersion())
-                                                .setPartition(assignment.getPartition())
-                                                .setOffset(record.getOffset())
-                                                .build()
-                                );
-                            }
-                        })
-                )
+                .flatMap(assignment -> {
+                    AckTracker acks = new AckTracker(
+                            client.stub(),
+                            AckRequest.newBuilder()
+                                    .setTopic(inSubscribeRequest.getTopic())
+                                    .setGroup(inSubscribeRequest.getGroup())
+                                    .setGroupVersion(inSubscribeRequest.getGroupVersion())
+                                    .setPartition(assignment.getPartition())
+                                    .build(),
+                            ackCount,
+                            Duration.ofMillis(ackInterval));
+
+                    ackTrackers.put(assignment.getPartition(), acks);
+
+                    Sinks.Empty<Void> stop = Sinks.empty();
+                    Sinks.Empty<Void> done = Sinks.empty();
+                    Mono<Void> drain = Mono.defer(() -> {
+                        stop.tryEmitEmpty();
+                        return done.asMono();
+                    });
+                    drains.put(assignment.getPartition(), drain);
+
+                    return session.stub(assignment.getPartition())
+                            .receive(ReceiveRequest.newBuilder().setAssignment(assignment).setFormat(ReceiveRequest.ContentFormat.LIIKLUS_EVENT).build())
+                            .takeUntilOther(stop.asMono())
+                            .map(ReceiveReply::getLiiklusEventRecord)
+                            .doOnNext(record -> {
+                                acks.received(record.getOffset());
+
+                                try {
+                                    System.out.println(decode(record.getEvent()));
+
+                                } catch (IOException e) {
+                                    e.printStackTrace();
+                                } finally {
+                                    acks.completed(record.getOffset());
+                                }
+                            })
+                            .then(Mono.defer(acks::close))
+                            .doFinally(signal -> {
+                                ackTrackers.remove(assignment.getPartition(), acks);
+                                drains.remove(assignment.getPartition(), drain);
+                                done.tryEmitEmpty();
+                            });
+                }, Integer.MAX_VALUE)
                 .doOnTerminate(latch::countDown)
                 .subscribe();
 
@@ -115,4 +178,17 @@ public class Sink implements Runnable {
 
         latch.await();
     }
+
+    // Decodes Jackson formats by data content type; text is printed as is, anything else by size
+    private Object decode(LiiklusEvent event) throws IOException {
+        String contentType = event.getDataContentType();
+        Optional<ObjectMapper> mapper = mappers.computeIfAbsent(contentType, t -> Optional.ofNullable(PayloadFormats.mapper(t)));
+
+        if (mapper.isPresent())
+            return mapper.get().readValue(event.getData().newInput(), Object.class);
+        if (contentType.startsWith("text/"))
+            return event.getData().toStringUtf8();
+
+        return "<" + event.getData().size() + " bytes of " + contentType + ">";
+    }
 }
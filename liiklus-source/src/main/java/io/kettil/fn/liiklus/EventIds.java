@@ -0,0 +1,23 @@
+package io.kettil.fn.liiklus;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates event ids without touching {@code SecureRandom}: a prefix chosen once per process from
+ * the start time and a random node number, followed by a monotonically increasing counter.
+ */
+public class EventIds {
+    private final String prefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    public EventIds() {
+        this.prefix = Long.toString(System.currentTimeMillis(), 36)
+                + "-" + Integer.toString(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE), 36)
+                + "-";
+    }
+
+    public String next() {
+        return prefix + Long.toString(counter.incrementAndGet(), 36);
+    }
+}
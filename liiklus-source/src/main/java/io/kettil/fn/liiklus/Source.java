@@ -1,14 +1,9 @@
 package io.kettil.fn.liiklus;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.github.bsideup.liiklus.protocol.LiiklusEvent;
 import com.github.bsideup.liiklus.protocol.PublishRequest;
-import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
 import com.google.protobuf.ByteString;
-import io.grpc.ManagedChannel;
-import io.grpc.netty.NettyChannelBuilder;
 import lombok.Data;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -16,13 +11,13 @@ import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.Comparator;
 import java.util.PriorityQueue;
 import java.util.Random;
-import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -55,13 +50,39 @@ public class Source implements Runnable {
     @CommandLine.Option(names = {"--port"}, description = "liiklus port", defaultValue = "6565")
     private int liiklusPort;
 
+    @CommandLine.Option(names = {"--endpoints"}, description = "comma separated liiklus host:port endpoints; overrides host and port")
+    private String endpoints;
+
+    @CommandLine.Option(names = {"--channels"}, description = "channels per liiklus endpoint", defaultValue = "2")
+    private int channels;
+
+    @CommandLine.Option(names = {"--flowControlWindow"}, description = "HTTP/2 flow-control window per stream in bytes", defaultValue = "1048576")
+    private int flowControlWindow;
+
+    @CommandLine.Option(names = {"--keepAliveTime"}, description = "Delay between keepalive pings in milliseconds", defaultValue = "30000")
+    private long keepAliveTime;
+
+    @CommandLine.Option(names = {"--keepAliveTimeout"}, description = "Longest wait for a keepalive ack in milliseconds", defaultValue = "10000")
+    private long keepAliveTimeout;
+
+    @CommandLine.Option(names = {"--maxInboundMessageSize"}, description = "Largest message accepted from liiklus in bytes", defaultValue = "16777216")
+    private int maxInboundMessageSize;
+
+    @CommandLine.Option(names = {"--drainTimeout"}, description = "Longest wait for an in-flight publish on shutdown in milliseconds", defaultValue = "10000")
+    private long drainTimeout;
+
+    @CommandLine.Option(names = {"--contentType"}, description = "Data content type of the events: json, smile, cbor or their full application/json, application/x-jackson-smile and application/cbor", defaultValue = PayloadFormats.JSON)
+    private String contentType;
+
     @Parameters(paramLabel = "TOPIC", description = "liiklus topic", defaultValue = "fn-output-topic")
     String topic;
 
     private Random random = new Random();
-    private ObjectMapper mapper = new ObjectMapper()
-            .registerModule(new Jdk8Module())
-            .registerModule(new JavaTimeModule());
+    private ObjectMapper mapper;
+
+    private final BufferPool pool = new BufferPool(1, 1024, 64 * 1024);
+
+    private final EventIds ids = new EventIds();
 
     private final PriorityQueue<FnEvent> pendingUpdates = new PriorityQueue<>(
             Comparator.comparing(FnEvent::getNextUpdate));
@@ -102,37 +123,52 @@ public class Source implements Runnable {
 
     private final CountDownLatch latch = new CountDownLatch(1);
 
+    private final CountDownLatch drained = new CountDownLatch(1);
+
     @SneakyThrows
     public void run() {
+        contentType = PayloadFormats.contentType(contentType);
+        mapper = PayloadFormats.mapper(contentType);
+        if (mapper == null)
+            throw new CommandLine.ParameterException(new CommandLine(this), "Unsupported content type: " + contentType);
+
         initPendingUpdates();
 
-        ManagedChannel channel = NettyChannelBuilder.forTarget(liiklusHost + ":" + liiklusPort)
-                .directExecutor()
-                .usePlaintext()
-                .build();
+        LiiklusClient.Options options = new LiiklusClient.Options();
+        options.setChannels(channels);
+        options.setFlowControlWindow(flowControlWindow);
+        options.setKeepAliveTime(Duration.ofMillis(keepAliveTime));
+        options.setKeepAliveTimeout(Duration.ofMillis(keepAliveTimeout));
+        options.setMaxInboundMessageSize(maxInboundMessageSize);
+
+        LiiklusClient client = new LiiklusClient(
+                LiiklusClient.targets(endpoints != null ? endpoints : liiklusHost + ":" + liiklusPort),
+                options);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             log.info("shutting down");
 
-            channel.shutdown();
+            // Stop generating and let the publish in progress finish before closing the channels
+            latch.countDown();
 
             try {
-                channel.awaitTermination(1000, TimeUnit.MILLISECONDS);
+                if (!drained.await(drainTimeout, TimeUnit.MILLISECONDS))
+                    log.warn("Publish did not finish within {} ms", drainTimeout);
             } catch (InterruptedException e) {
                 // Already in shutdown hook--don't call Thread.currentThread().interrupt()
-            } finally {
-                channel.shutdownNow();
             }
 
-            latch.countDown();
+            client.shutdown(Duration.ofMillis(1000));
         }));
 
-        log.info("opened channel");
-
-        ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub = ReactorLiiklusServiceGrpc.newReactorStub(channel);
-
-        log.info("created service stub");
+        try {
+            generate(client);
+        } finally {
+            drained.countDown();
+        }
+    }
 
+    private void generate(LiiklusClient client) throws IOException, InterruptedException {
         while (!latch.await(100, TimeUnit.MILLISECONDS)) {
             LocalDateTime now = LocalDateTime.now();
             FnEvent s = pendingUpdates.poll();
@@ -151,25 +187,30 @@ public class Source implements Runnable {
 
             pendingUpdates.add(fnevt);
 
-            System.out.println(mapper.writeValueAsString(fnevt));
-
-            LiiklusEvent liiklusEvent = LiiklusEvent.newBuilder()
-                    .setId(UUID.randomUUID().toString())
-                    .setType("io.kettil.fn.event")
-                    .setSource("/example")
-                    .setDataContentType("application/json")
-                    .setData(ByteString.copyFrom(mapper.writeValueAsBytes(fnevt)))
-                    .build();
-
-            PublishRequest publishRequest = PublishRequest.newBuilder()
-                    .setTopic(topic)
-                    .setKey(ByteString.copyFromUtf8(UUID.randomUUID().toString()))
-                    .setLiiklusEvent(liiklusEvent)
-                    .build();
-
-            stub
-                    .publish(publishRequest)
-                    .block(Duration.of(1000, ChronoUnit.MILLIS));
+            BufferPool.Buffer buffer = pool.acquire();
+            try {
+                mapper.writeValue(buffer, fnevt);
+
+                ByteString data = buffer.wrap();
+                System.out.println(fnevt);
+
+                PublishRequest publishRequest = PublishRequest.newBuilder()
+                        .setTopic(topic)
+                        .setKey(ByteString.copyFromUtf8(fnevt.getId()))
+                        .setLiiklusEvent(LiiklusEvent.newBuilder()
+                                .setId(ids.next())
+                                .setType("io.kettil.fn.event")
+                                .setSource("/example")
+                                .setDataContentType(contentType)
+                                .setData(data))
+                        .build();
+
+                client.stub()
+                        .publish(publishRequest)
+                        .block(Duration.of(1000, ChronoUnit.MILLIS));
+            } finally {
+                buffer.release();
+            }
 
         }
     }